@@ -0,0 +1,70 @@
+package bench;
+
+import java.awt.Point;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import editor.ui.Grid;
+
+/**
+ * Measures how long it takes to snap a position to the grid, which is done
+ * for every mouse move while an object is being placed.
+ * 
+ * @author Jesper Bergstrom
+ * @name GridBenchmark.java
+ * @version 0.00.00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class GridBenchmark {
+
+	private static final int POINTS = 1024;
+
+	@Param({ "10000", "100000", "1000000" })
+	public int objectCount;
+
+	private Grid grid;
+	private double[] x;
+	private double[] y;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		int size = Levels.size(objectCount) * Levels.TILE_SIZE;
+		grid = new Grid(Levels.TILE_SIZE, size, size);
+		Random random = new Random(1);
+		x = new double[POINTS];
+		y = new double[POINTS];
+		for (int i = 0; i < POINTS; i++) {
+			x[i] = random.nextDouble() * size;
+			y[i] = random.nextDouble() * size;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POINTS)
+	public void findClosestPoint(Blackhole bh) {
+		for (int i = 0; i < POINTS; i++) {
+			Point p = grid.findClosestPoint(x[i], y[i]);
+			bh.consume(p);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.Pair;
+import editor.event.EditorEventHandler;
+
+/**
+ * Measures undo and redo of events that touch every object of the level,
+ * like deleting or moving everything at once. Each benchmark undoes and
+ * redoes the event, so the level is the same after every invocation.
+ * 
+ * @author Jesper Bergstrom
+ * @name HistoryBenchmark.java
+ * @version 0.00.00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class HistoryBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int objectCount;
+
+	private ArrayList<Layer> levelMap;
+	private EditorEventHandler deleteHistory;
+	private EditorEventHandler moveHistory;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		levelMap = Levels.create(objectCount, 1).levelMap;
+
+		ArrayList<Pair<GameObject, Integer>> deleted = new ArrayList<Pair<GameObject, Integer>>();
+		GameObject[] moved = new GameObject[objectCount];
+		double[] deltaX = new double[objectCount];
+		double[] deltaY = new double[objectCount];
+		for (int i = 0; i < levelMap.size(); i++) {
+			Layer layer = levelMap.get(i);
+			for (int j = 0; j < layer.size(); j++) {
+				moved[deleted.size()] = layer.get(j);
+				deltaX[deleted.size()] = j % 2 == 0 ? Levels.TILE_SIZE : -Levels.TILE_SIZE;
+				deleted.add(new Pair<GameObject, Integer>(layer.get(j), i));
+			}
+		}
+
+		// The delete is recorded after the objects have been deleted and is
+		// then undone, so redoing it first deletes them again. The move is
+		// recorded without changing the level, redoing it first applies it.
+		for (int i = 0; i < deleted.size(); i++) {
+			levelMap.get(deleted.get(i).two).remove(deleted.get(i).one);
+		}
+		deleteHistory = new EditorEventHandler();
+		deleteHistory.addDeleteEvent(deleted);
+		deleteHistory.undo(levelMap);
+		moveHistory = new EditorEventHandler();
+		moveHistory.addMoveEvent(moved, deltaX, deltaY);
+		moveHistory.undo(levelMap);
+		moveHistory.redo(levelMap);
+	}
+
+	@Benchmark
+	public void deleteAll() {
+		deleteHistory.redo(levelMap);
+		deleteHistory.undo(levelMap);
+	}
+
+	@Benchmark
+	public void moveAll() {
+		moveHistory.undo(levelMap);
+		moveHistory.redo(levelMap);
+	}
+}
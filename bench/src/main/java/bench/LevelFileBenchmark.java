@@ -0,0 +1,84 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.LevelFileManager;
+import io.LevelFormat;
+
+/**
+ * Measures how long it takes to load and save a level, on one thread and
+ * with the chunks spread over the fork-join pool.
+ * 
+ * @author Jesper Bergstrom
+ * @name LevelFileBenchmark.java
+ * @version 0.00.00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class LevelFileBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int objectCount;
+
+	@Param({ "false", "true" })
+	public boolean parallel;
+
+	@Param({ "FLAT", "CHUNKED" })
+	public LevelFormat format;
+
+	private LevelFileManager levelFileManager;
+	private io.Level level;
+	private File levelFile;
+	private File saveFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		levelFileManager = new LevelFileManager();
+		levelFileManager.setParallel(parallel);
+		levelFileManager.setDefaultFormat(format);
+		level = Levels.create(objectCount, 1);
+		// The files are written in the format they are in, so they are
+		// removed and written new.
+		levelFile = File.createTempFile("bench", ".lvl");
+		saveFile = File.createTempFile("bench-save", ".lvl");
+		levelFile.delete();
+		saveFile.delete();
+		levelFileManager.writeFile(level, levelFile.getPath());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		levelFile.delete();
+		saveFile.delete();
+	}
+
+	@Benchmark
+	public io.Level loadFile() {
+		return levelFileManager.loadFile(levelFile);
+	}
+
+	@Benchmark
+	public void writeFile() {
+		levelFileManager.writeFile(level, saveFile.getPath());
+	}
+}
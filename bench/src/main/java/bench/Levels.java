@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.SpriteRegistry;
+import io.Level;
+import io.LevelSettings;
+
+/**
+ * Creates synthetic levels for the benchmarks. The objects are spread over a
+ * square level with about one object per tile, so a level with more objects
+ * is also a bigger level. Most objects sit on the grid but some are moved
+ * off it so that there are overlaps to find.
+ * 
+ * @author Jesper Bergstrom
+ * @name Levels.java
+ * @version 0.00.00
+ */
+public class Levels {
+
+	public static final int TILE_SIZE = 32;
+	public static final int LAYER_COUNT = 8;
+
+	/**
+	 * Returns the width and height in tiles of a level with the given number
+	 * of objects.
+	 * 
+	 * @param objectCount
+	 * @return
+	 */
+	public static int size(int objectCount) {
+		return (int) Math.ceil(Math.sqrt(objectCount));
+	}
+
+	public static Level create(int objectCount, long seed) {
+		Random random = new Random(seed);
+		int size = size(objectCount);
+		int sprites = SpriteRegistry.getInstance().size();
+		ArrayList<Layer> levelMap = new ArrayList<Layer>();
+		for (int i = 0; i < LAYER_COUNT; i++) {
+			levelMap.add(new Layer(TILE_SIZE, objectCount / LAYER_COUNT + 1));
+		}
+		for (int i = 0; i < objectCount; i++) {
+			GameObject o = new GameObject();
+			o.setX(random.nextInt(size) * TILE_SIZE);
+			o.setY(random.nextInt(size) * TILE_SIZE);
+			if (random.nextInt(5) == 0) {
+				o.setX(o.getX() + random.nextFloat() * TILE_SIZE);
+				o.setY(o.getY() + random.nextFloat() * TILE_SIZE);
+			}
+			o.setSpriteId((short) (sprites == 0 ? -1 : random.nextInt(sprites)));
+			levelMap.get(random.nextInt(LAYER_COUNT)).add(o);
+		}
+		return new Level(new LevelSettings(size, size, TILE_SIZE), levelMap);
+	}
+}
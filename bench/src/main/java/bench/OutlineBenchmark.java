@@ -0,0 +1,70 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import editor.entities.OutlineGenerator;
+import javafx.scene.paint.Color;
+
+/**
+ * Measures the Sobel filter that creates the outlines of a sprite. The
+ * sprite is a filled circle so that the outline is neither empty nor the
+ * whole image.
+ * 
+ * @author Jesper Bergstrom
+ * @name OutlineBenchmark.java
+ * @version 0.00.00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class OutlineBenchmark {
+
+	@Param({ "32", "128", "512" })
+	public int spriteSize;
+
+	private int[] argb;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		argb = new int[spriteSize * spriteSize];
+		double r = spriteSize / 2.0;
+		for (int y = 0; y < spriteSize; y++) {
+			for (int x = 0; x < spriteSize; x++) {
+				double dx = x + 0.5 - r;
+				double dy = y + 0.5 - r;
+				if (dx * dx + dy * dy < r * r) {
+					argb[y * spriteSize + x] = 0xFF3C8C28;
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public byte[] sobel() {
+		return OutlineGenerator.sobel(argb, spriteSize, spriteSize);
+	}
+
+	@Benchmark
+	public void sobelAndTint(Blackhole bh) {
+		byte[] edges = OutlineGenerator.sobel(argb, spriteSize, spriteSize);
+		bh.consume(OutlineGenerator.tint(edges, Color.RED));
+		bh.consume(OutlineGenerator.tint(edges, Color.BLUE));
+	}
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.OverlapTracker;
+
+/**
+ * Measures overlap detection, both the full pass that is done when
+ * highlighting of overlaps is turned on and the update after an object is
+ * moved.
+ * 
+ * @author Jesper Bergstrom
+ * @name OverlapBenchmark.java
+ * @version 0.00.00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class OverlapBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int objectCount;
+
+	private ArrayList<Layer> levelMap;
+	private OverlapTracker tracker;
+	private Random random;
+	private int size;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		levelMap = Levels.create(objectCount, 1).levelMap;
+		tracker = new OverlapTracker(levelMap);
+		random = new Random(1);
+		size = Levels.size(objectCount) * Levels.TILE_SIZE;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public boolean fullPass() {
+		tracker.setEnabled(true);
+		boolean overlapping = !tracker.getOverlapping().isEmpty();
+		tracker.setEnabled(false);
+		return overlapping;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public boolean moveObject(MovingState state) {
+		Layer layer = levelMap.get(random.nextInt(levelMap.size()));
+		GameObject o = layer.get(random.nextInt(layer.size()));
+		layer.move(o, random.nextInt(size), random.nextInt(size));
+		return tracker.isOverlapping(o);
+	}
+
+	/**
+	 * Keeps the tracker enabled while objects are moved.
+	 */
+	@State(Scope.Benchmark)
+	public static class MovingState {
+
+		@Setup(Level.Trial)
+		public void setup(OverlapBenchmark benchmark) {
+			benchmark.tracker.setEnabled(true);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import javafx.geometry.Rectangle2D;
+
+/**
+ * Measures marquee selection of every layer through Layer.select, which is
+ * what LevelPane uses when the selection rectangle is dragged with CTRL
+ * held down.
+ * 
+ * @author Jesper Bergstrom
+ * @name SelectionBenchmark.java
+ * @version 0.00.00
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class SelectionBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int objectCount;
+
+	private ArrayList<Layer> levelMap;
+	private Rectangle2D screenSelection;
+	private Rectangle2D largeSelection;
+	private int size;
+	private Random random;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		levelMap = Levels.create(objectCount, 1).levelMap;
+		size = Levels.size(objectCount) * Levels.TILE_SIZE;
+		random = new Random(1);
+		// A quarter of the level, or the whole level if it is small.
+		largeSelection = new Rectangle2D(0, 0, size / 2.0, size / 2.0);
+	}
+
+	@Setup(Level.Iteration)
+	public void moveSelection() {
+		double w = Math.min(1280, size);
+		double h = Math.min(720, size);
+		screenSelection = new Rectangle2D(random.nextDouble() * (size - w), random.nextDouble() * (size - h), w, h);
+	}
+
+	@Benchmark
+	public ArrayList<GameObject> selectScreen() {
+		return select(screenSelection);
+	}
+
+	@Benchmark
+	public ArrayList<GameObject> selectLarge() {
+		return select(largeSelection);
+	}
+
+	private ArrayList<GameObject> select(Rectangle2D r) {
+		return Layer.select(levelMap, -1, r.getMinX(), r.getMinY(), r.getWidth(), r.getHeight());
+	}
+}
@@ -6,32 +6,37 @@ import java.net.URI;
 import java.util.ArrayList;
 
 import editor.entities.GameObject;
-import editor.entities.Pixel;
+import editor.entities.Sprite;
+import editor.entities.SpriteRegistry;
+import editor.ui.LevelLoadTask;
+import editor.ui.LevelPager;
 import editor.ui.LevelPane;
-import io.Level;
 import io.LevelFileManager;
+import io.LevelJournal;
 import io.LevelSettings;
+import io.PagedLevelFile;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Alert.AlertType;
+import javafx.scene.control.Button;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
-import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
-import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
@@ -84,8 +89,9 @@ public class MainWindowController implements LevelEditorController {
 
 	private int currentLayer = 4;
 	private int currentObjectType = 0;
-	private GameObject[] allObjects;
+	private Sprite[] allObjects;
 	private LevelFileManager levelFileManager;
+	private LevelLoadTask loadTask;
 	public File openedFile;
 
 	private int tileSize = 32;
@@ -150,11 +156,10 @@ public class MainWindowController implements LevelEditorController {
 		
 		menuFileOpen.setOnAction(e -> {
 			FileChooser fc = new FileChooser();
-			openedFile = fc.showOpenDialog(root.getScene().getWindow());
-			Level level = levelFileManager.loadFile(openedFile);
-			setNewLevel(level.levelSettings);
-			levelPane.levelMap = level.levelMap;
-			levelPane.draw();
+			File file = fc.showOpenDialog(root.getScene().getWindow());
+			if (file != null) {
+				openLevel(file);
+			}
 		});
 
 		menuFileNew.setOnAction(e -> {
@@ -181,14 +186,127 @@ public class MainWindowController implements LevelEditorController {
 		});
 	}
 
+	/**
+	 * Opens a level file. The level is shown right away and its objects are
+	 * added while the file is being read on a background thread. A progress
+	 * bar with a cancel button is shown until the whole file has been read.
+	 * 
+	 * @param file
+	 */
+	private void openLevel(File file) {
+		LevelSettings levelSettings = levelFileManager.readSettings(file);
+		if (levelSettings == null) {
+			return;
+		}
+		openedFile = null;
+		setNewLevel(levelSettings);
+
+		// Levels that are too big to be loaded whole are loaded around the
+		// view instead. Only chunked files that can be written to can be
+		// paged, so other files are loaded whole whatever their size.
+		if (levelFileManager.readObjectCount(file) > LevelPager.PAGED_LEVEL_SIZE) {
+			PagedLevelFile pagedFile = levelFileManager.openPaged(file);
+			if (pagedFile != null) {
+				levelPane.setPagedLevel(pagedFile);
+				openedFile = file;
+				return;
+			}
+		}
+
+		LevelLoadTask task = new LevelLoadTask(levelFileManager, file, levelPane);
+		loadTask = task;
+
+		ProgressBar progressBar = new ProgressBar();
+		progressBar.setPrefWidth(300);
+		progressBar.progressProperty().bind(task.progressProperty());
+		Button cancelBtn = new Button("Cancel");
+		cancelBtn.setOnAction(e -> task.cancel());
+		HBox progressBox = new HBox(progressBar, cancelBtn);
+		progressBox.setSpacing(10);
+		progressBox.setAlignment(Pos.CENTER);
+		progressBox.setPadding(new Insets(5, 5, 5, 5));
+		progressBox.setStyle("-fx-background-color: #171717");
+		progressBox.setMaxSize(HBox.USE_PREF_SIZE, HBox.USE_PREF_SIZE);
+		StackPane.setAlignment(progressBox, Pos.BOTTOM_CENTER);
+		stackPane.getChildren().add(progressBox);
+
+		// The level is only saved over the file it was loaded from once the
+		// whole file has been read.
+		task.setOnSucceeded(e -> {
+			stackPane.getChildren().remove(progressBox);
+			if (loadTask == task) {
+				loadTask = null;
+				openedFile = file;
+				levelPane.openJournal(file);
+				if (task.getValue() > 0) {
+					showSkippedEdits(file, task.getValue());
+				}
+			}
+		});
+		task.setOnCancelled(e -> {
+			stackPane.getChildren().remove(progressBox);
+			if (loadTask == task) {
+				loadTask = null;
+			}
+		});
+		task.setOnFailed(e -> {
+			stackPane.getChildren().remove(progressBox);
+			task.getException().printStackTrace();
+			if (loadTask == task) {
+				loadTask = null;
+			}
+		});
+
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Tells the user that some of the saved edits of a level could not be
+	 * replayed. The journal is kept, so the edits are not lost.
+	 * 
+	 * @param file
+	 * @param skipped
+	 */
+	private void showSkippedEdits(File file, int skipped) {
+		Alert alert = new Alert(AlertType.WARNING);
+		alert.initOwner(root.getScene().getWindow());
+		alert.setTitle("Level Journal");
+		alert.setHeaderText(skipped + (skipped == 1 ? " saved edit" : " saved edits") + " could not be opened");
+		alert.setContentText("The edits in " + LevelJournal.getJournalFile(file).getName()
+				+ " do not match the level and were left out. The journal is kept next to the level file.");
+		alert.show();
+	}
+
+	/**
+	 * Returns true while a level is being loaded. The level must not be saved
+	 * meanwhile, since only a part of it is loaded.
+	 * 
+	 * @return
+	 */
+	public boolean isLoading() {
+		return loadTask != null;
+	}
+
+	private void cancelLoading() {
+		if (loadTask != null) {
+			loadTask.cancel();
+			loadTask = null;
+		}
+	}
+
 	private void resetLevelPane() {
+		if (levelPane != null) {
+			levelPane.dispose();
+		}
 		this.stackPane.getChildren().remove(levelPane);
 		this.levelPane = new LevelPane(this);
-		this.levelPane.setAllObjects(allObjects);
 		this.stackPane.getChildren().add(0, levelPane);
 	}
 
 	public void setNewLevel(LevelSettings levelSettings) {
+		cancelLoading();
 		Stage stage = (Stage) this.root.getScene().getWindow();
 		stage.setMaximized(true);
 		resetLevelPane();
@@ -247,31 +365,15 @@ public class MainWindowController implements LevelEditorController {
 	}
 
 	private void initAllObjects() {
-		File[] types = new File("./res/sprites").listFiles();
-		ArrayList<GameObject> temp = new ArrayList<GameObject>();
-
-		for (int i = 0; i < types.length; i++) {
-			File[] files = types[i].listFiles();
-			for (int j = 0; j < files.length; j++) {
-				GameObject o = new GameObject();
-				o.type = types[i].getName();
-				o.imageURL = files[j].getAbsolutePath();
-				o.setObjectName(files[j].getName().replaceAll(".png", ""));
-				Image img = new Image("file:" + o.imageURL);
-				o.image = img;
-				o.selectedPixels = sobel(o.image, Color.RED);
-				o.highlightPixels = sobel(o.image, Color.BLUE);
-				o.width = img.getWidth();
-				o.height = img.getHeight();
-				temp.add(o);
-			}
-		}
-
-		allObjects = new GameObject[temp.size()];
+		SpriteRegistry sprites = SpriteRegistry.getInstance();
+		allObjects = new Sprite[sprites.size()];
 
 		for (int i = 0; i < allObjects.length; i++) {
-			allObjects[i] = temp.get(i);
+			allObjects[i] = sprites.get(i);
 		}
+		// The images are loaded in the background, sprites that are drawn
+		// before the prefetch reaches them are loaded first.
+		sprites.prefetch();
 	}
 
 	private void initObjectPanel() {
@@ -326,92 +428,22 @@ public class MainWindowController implements LevelEditorController {
 				final int objIndex = i;
 				HBox hbox = new HBox();
 				hbox.setSpacing(10);
-				Text text = new Text(allObjects[i].getObjectName());
+				Text text = new Text(allObjects[i].name);
 				ImageView iv = new ImageView();
 				objectPanel.setSpacing(10);
 				objectPanel.setPadding(new Insets(0, 10, 10, 10));
-				Image img = new Image("file:" + allObjects[i].imageURL, 32, 32, false, false);
+				Image img = SpriteRegistry.getInstance().getScaledImage(allObjects[i].id, 32, 32);
 				iv.setImage(img);
 				hbox.getChildren().addAll(iv, text);
 				objectPanel.getChildren().add(hbox);
 				hbox.setOnMouseClicked(e -> {
 					GameObject t = new GameObject();
-					t.type = tabs.get(tabIndex);
-					t.setObjectName(allObjects[objIndex].getObjectName());
-					t.imageURL = allObjects[objIndex].imageURL;
-					t.width = allObjects[objIndex].width;
-					t.height = allObjects[objIndex].height;
+					t.setObjectName(allObjects[objIndex].name);
+					t.setWidth((float) allObjects[objIndex].width);
+					t.setHeight((float) allObjects[objIndex].height);
 					levelPane.setCurrentObject(t);
 				});
 			}
 		}
 	}
-
-	private WritableImage sobel(Image img, Color color) {
-		PixelReader pr = img.getPixelReader();
-		Pixel[][] grayscale = new Pixel[(int) img.getWidth() + 10][(int) img.getHeight() + 10];
-		Pixel[][] result = new Pixel[(int) img.getWidth() + 10][(int) img.getHeight() + 10];
-
-		for (int x = 0; x < img.getWidth(); x++) {
-			for (int y = 0; y < img.getHeight(); y++) {
-				if (pr.getColor(x, y).getOpacity() > 0.05) {
-					grayscale[x + 5][y + 5] = new Pixel(x, y, Color.WHITE);
-				} else {
-					grayscale[x + 5][y + 5] = new Pixel(x, y, Color.BLACK);
-				}
-			}
-		}
-
-		for (int x = 0; x < grayscale.length; x++) {
-			for (int y = 0; y < grayscale[0].length; y++) {
-				if (grayscale[x][y] == null) {
-					grayscale[x][y] = new Pixel(x, y, Color.BLACK);
-				}
-			}
-		}
-
-		for (int x = 1; x < grayscale.length - 1; x++) {
-			for (int y = 1; y < grayscale[0].length - 1; y++) {
-				double val1 = grayscale[x - 1][y - 1].color.getRed() * -1;
-				val1 += grayscale[x - 1][y].color.getRed() * -2;
-				val1 += grayscale[x - 1][y + 1].color.getRed() * -1;
-				val1 += grayscale[x + 1][y - 1].color.getRed();
-				val1 += grayscale[x + 1][y].color.getRed() * 2;
-				val1 += grayscale[x + 1][y + 1].color.getRed();
-
-				double val2 = grayscale[x - 1][y - 1].color.getRed() * -1;
-				val2 += grayscale[x][y - 1].color.getRed() * -2;
-				val2 += grayscale[x + 1][y - 1].color.getRed() * -1;
-				val2 += grayscale[x - 1][y + 1].color.getRed() * 1;
-				val2 += grayscale[x][y + 1].color.getRed() * 2;
-				val2 += grayscale[x + 1][y + 1].color.getRed() * 1;
-
-				double val = Math.sqrt(val1 * val1 + val2 * val2);
-				if (val > 1) {
-					val = 1;
-				}
-				result[x][y] = new Pixel(x, y, new Color(color.getRed(), color.getGreen(), color.getBlue(), val));
-			}
-		}
-
-		WritableImage bfimg = new WritableImage(result.length, result[0].length);
-		PixelWriter g = bfimg.getPixelWriter();
-		for (int x = 0; x < result.length; x++) {
-			for (int y = 0; y < result[0].length; y++) {
-				Color c = null;
-				if (result[x][y] == null) {
-					c = new Color(0, 0, 0, 0);
-				} else {
-					double red = result[x][y].color.getRed();
-					double green = result[x][y].color.getGreen();
-					double blue = result[x][y].color.getBlue();
-					double op = result[x][y].color.getOpacity();
-					c = new Color(red, green, blue, op);
-				}
-				g.setColor(x, y, c);
-			}
-		}
-
-		return bfimg;
-	}
 }
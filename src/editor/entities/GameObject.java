@@ -1,40 +1,128 @@
 package editor.entities;
 
-import java.io.File;
+/**
+ * An object that is placed in a level. Everything that is the same for all
+ * objects of a sprite, like the name, type and images, is looked up in the
+ * {@link SpriteRegistry} through the sprite id, and the properties are only
+ * created once they are asked for.
+ *
+ * A level can hold millions of objects, so a layer does not keep one
+ * GameObject per object but stores the fields of its objects in columns, and
+ * a GameObject is only a view of one row of a layer. A layer hands out at
+ * most one view per row, so views can be compared by identity. An object
+ * that is not in a layer, such as a new or a deleted object, keeps its
+ * fields itself.
+ */
+public class GameObject {
+	// The layer that holds the fields of the object and the row of the
+	// object in it, or null and -1 if the object is not in a layer.
+	Layer layer;
+	int row = -1;
+	// The fields of an object that is not in a layer.
+	float x;
+	float y;
+	float width = 32;
+	float height = 32;
+	float scale = 1.0f;
+	short spriteId = -1;
+	// Null until the properties are asked for, most objects never need them.
+	Property[] properties;
 
-import javafx.scene.image.Image;
-import javafx.scene.image.WritableImage;
+	public float getX() {
+		return layer == null ? x : layer.x[row];
+	}
 
-public class GameObject {
-	public double x;
-	public double y;
-	public double width = 32;
-	public double height = 32;
-	public double scale = 1.0;
-	public String imageURL = "";
-	public Image image = null;
-	public WritableImage selectedPixels;
-	public WritableImage highlightPixels;
-	public String type = null;
-	private String objectName = "";
-	public Property[] properties;
+	public float getY() {
+		return layer == null ? y : layer.y[row];
+	}
+
+	public float getWidth() {
+		return layer == null ? width : layer.width[row];
+	}
+
+	public float getHeight() {
+		return layer == null ? height : layer.height[row];
+	}
+
+	public float getScale() {
+		return layer == null ? scale : layer.scale[row];
+	}
+
+	public short getSpriteId() {
+		return layer == null ? spriteId : layer.spriteId[row];
+	}
+
+	// An object that is placed in a layer must be moved through
+	// Layer.move and must not change its size, so that the index of the
+	// layer stays correct. The setters are meant for objects that are not in
+	// a layer yet.
+
+	public void setX(float x) {
+		if (layer == null) {
+			this.x = x;
+		} else {
+			layer.x[row] = x;
+		}
+	}
+
+	public void setY(float y) {
+		if (layer == null) {
+			this.y = y;
+		} else {
+			layer.y[row] = y;
+		}
+	}
+
+	public void setWidth(float width) {
+		if (layer == null) {
+			this.width = width;
+		} else {
+			layer.width[row] = width;
+		}
+	}
+
+	public void setHeight(float height) {
+		if (layer == null) {
+			this.height = height;
+		} else {
+			layer.height[row] = height;
+		}
+	}
+
+	public void setScale(float scale) {
+		if (layer == null) {
+			this.scale = scale;
+		} else {
+			layer.scale[row] = scale;
+		}
+	}
+
+	public void setSpriteId(short spriteId) {
+		if (layer == null) {
+			this.spriteId = spriteId;
+		} else {
+			layer.spriteId[row] = spriteId;
+		}
+	}
 
 	public boolean contains(double pointX, double pointY) {
-		if (pointX > x - 1 && pointX < x + width + 2 && pointY > y - 1 && pointY < y + height + 2) {
+		float x = getX();
+		float y = getY();
+		if (pointX > x - 1 && pointX < x + getWidth() + 2 && pointY > y - 1 && pointY < y + getHeight() + 2) {
 			return true;
 		}
 		return false;
 	}
 
 	public boolean overlaps(GameObject o) {
-		double xmin = Math.max(x, o.x);
-		double xmax1 = x + width;
-		double xmax2 = o.x + o.width;
+		double xmin = Math.max(getX(), o.getX());
+		double xmax1 = getX() + getWidth();
+		double xmax2 = o.getX() + o.getWidth();
 		double xmax = Math.min(xmax1, xmax2);
 		if (xmax > xmin) {
-			double ymin = Math.max(y, o.y);
-			double ymax1 = y + height;
-			double ymax2 = o.y + o.height;
+			double ymin = Math.max(getY(), o.getY());
+			double ymax1 = getY() + getHeight();
+			double ymax2 = o.getY() + o.getHeight();
 			double ymax = Math.min(ymax1, ymax2);
 			if (ymax > ymin) {
 				return true;
@@ -44,32 +132,74 @@ public class GameObject {
 	}
 
 	public void setObjectName(String objectName) {
-		this.objectName = objectName;
-		File file = new File("./res/sprites");
-		File[] types = file.listFiles();
-		outerloop:
-		for (int i = 0; i < types.length; i++) {
-			File[] names = types[i].listFiles();
-			for (int j = 0; j < names.length; j++) {
-				if (names[j].getName().replaceAll(".png", "").equals(objectName)) {
-					this.type = types[i].getName();
-					break outerloop;
-				}
-			}
+		setSpriteId((short) SpriteRegistry.getInstance().getId(objectName));
+		setProperties(null);
+	}
+
+	public String getObjectName() {
+		short spriteId = getSpriteId();
+		if (spriteId < 0) {
+			return null;
 		}
-		
-		if (objectName == "grass") {
-			Property[] p = { new Property("friction", "normal"), new Property("length", "short") };
-			properties = p;
-		} else if (objectName == "suit") {
-			Property[] p = { new Property("color", "black") };
-			properties = p;
-		} else {
-			properties = new Property[0];
+		return SpriteRegistry.getInstance().get(spriteId).name;
+	}
+
+	public String getType() {
+		short spriteId = getSpriteId();
+		if (spriteId < 0) {
+			return null;
 		}
+		return SpriteRegistry.getInstance().get(spriteId).type;
 	}
 
-	public String getObjectName() {
-		return objectName;
+	public String getImageURL() {
+		short spriteId = getSpriteId();
+		if (spriteId < 0) {
+			return "";
+		}
+		return SpriteRegistry.getInstance().get(spriteId).imageURL;
+	}
+
+	/**
+	 * Returns the properties of the object, which start out as the default
+	 * properties of its sprite.
+	 *
+	 * @return
+	 */
+	public Property[] getProperties() {
+		Property[] properties = layer == null ? this.properties : layer.getProperties(row);
+		if (properties == null) {
+			short spriteId = getSpriteId();
+			if (spriteId < 0) {
+				properties = new Property[0];
+			} else {
+				properties = SpriteRegistry.getInstance().get(spriteId).createProperties();
+			}
+			setProperties(properties);
+		}
+		return properties;
+	}
+
+	/**
+	 * Returns true if the properties of the object have been created.
+	 *
+	 * @return
+	 */
+	public boolean hasProperties() {
+		return (layer == null ? properties : layer.getProperties(row)) != null;
+	}
+
+	/**
+	 * Sets the properties of the object, or null to go back to the default
+	 * properties of its sprite.
+	 *
+	 * @param properties
+	 */
+	public void setProperties(Property[] properties) {
+		if (layer == null) {
+			this.properties = properties;
+		} else {
+			layer.setProperties(row, properties);
+		}
 	}
-}
\ No newline at end of file
+}
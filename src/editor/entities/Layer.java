@@ -0,0 +1,632 @@
+package editor.entities;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One of the layers of a level. Holds the placed objects in the order they
+ * were placed, which is also the order they are drawn in, together with a
+ * spatial index that is kept in sync with every change to the layer.
+ *
+ * The fields of the objects are stored in columns, one primitive array per
+ * field, with one row per object, and the properties of the few objects that
+ * have them are kept in a map by row. A {@link GameObject} of the layer is a
+ * view of its row. Views are only created when they are asked for, and the
+ * layer hands out one view per row for as long as the view is in use, so
+ * views can be compared by identity. Code that only reads the objects can
+ * use {@link #forEachInDrawOrder} or {@link #copyTo} and needs no views at
+ * all.
+ *
+ * A removed object takes its fields with it and leaves an empty row behind,
+ * and the empty rows are compacted away once they make up half the layer or
+ * when the objects are asked for by index. Compacting keeps the order of the
+ * rows, so the rows are also the draw order.
+ *
+ * Objects that are placed in a layer must be moved through
+ * {@link #move(GameObject, double, double)} so that the index stays correct.
+ *
+ * @author Jesper Bergstrom
+ * @name Layer.java
+ * @version 0.00.00
+ */
+public class Layer {
+
+	public static final int DEFAULT_CELL_SIZE = 32;
+
+	// Sorts objects of the same layer in the order they are drawn in.
+	public static final Comparator<GameObject> DRAW_ORDER = (a, b) -> Integer.compare(a.row, b.row);
+
+	// The fields of the objects by row.
+	float[] x;
+	float[] y;
+	float[] width;
+	float[] height;
+	float[] scale;
+	short[] spriteId;
+	// One bit per row that is set if the row holds an object.
+	private long[] used;
+	// An int per row that the owner of the layer can use, or null until one
+	// is set.
+	private int[] tags;
+	// The properties of the rows that have them, or null if no row has.
+	private HashMap<Integer, Property[]> properties;
+	// The views that have been handed out by row. Views that are no longer
+	// used are cleared by the garbage collector and taken out of the map.
+	private HashMap<Integer, ViewReference> views = new HashMap<Integer, ViewReference>();
+	private ReferenceQueue<GameObject> clearedViews = new ReferenceQueue<GameObject>();
+	private int rows = 0;
+	private int emptyRows = 0;
+	private SpatialIndex index;
+	private ArrayList<LayerListener> listeners;
+
+	public Layer() {
+		this(DEFAULT_CELL_SIZE);
+	}
+
+	public Layer(int cellSize) {
+		this(cellSize, 10);
+	}
+
+	/**
+	 * Creates a layer with room for the given number of objects.
+	 *
+	 * @param cellSize
+	 * @param capacity
+	 */
+	public Layer(int cellSize, int capacity) {
+		capacity = Math.max(capacity, 1);
+		x = new float[capacity];
+		y = new float[capacity];
+		width = new float[capacity];
+		height = new float[capacity];
+		scale = new float[capacity];
+		spriteId = new short[capacity];
+		used = new long[(capacity + 63) >> 6];
+		index = new SpatialIndex(cellSize, capacity);
+		listeners = new ArrayList<LayerListener>();
+	}
+
+	public void addListener(LayerListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(LayerListener listener) {
+		listeners.remove(listener);
+	}
+
+	public int size() {
+		return rows - emptyRows;
+	}
+
+	public GameObject get(int i) {
+		compact();
+		if (i < 0 || i >= rows) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + rows);
+		}
+		return view(i);
+	}
+
+	public void add(GameObject o) {
+		if (o.layer != null) {
+			throw new IllegalArgumentException("The object is already in a layer");
+		}
+		int row = addRow(o.x, o.y, o.width, o.height, o.scale, o.spriteId);
+		if (o.properties != null) {
+			setProperties(row, o.properties);
+			o.properties = null;
+		}
+		o.layer = this;
+		o.row = row;
+		views.put(row, new ViewReference(o, row, clearedViews));
+		fireAdded(o);
+	}
+
+	/**
+	 * Adds an object from its fields. No view of the object is created
+	 * unless a listener needs one, so this is the way to fill a layer with
+	 * objects that are read from a file.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param scale
+	 * @param spriteId
+	 */
+	public void add(float x, float y, float width, float height, float scale, short spriteId) {
+		int row = addRow(x, y, width, height, scale, spriteId);
+		if (!listeners.isEmpty()) {
+			fireAdded(view(row));
+		}
+	}
+
+	public boolean remove(GameObject o) {
+		if (!contains(o)) {
+			return false;
+		}
+		removeRow(o);
+		if (emptyRows > rows / 2) {
+			compact();
+		}
+		fireRemoved(o);
+		return true;
+	}
+
+	/**
+	 * Adds several objects at once, growing the layer only once.
+	 *
+	 * @param objects
+	 */
+	public void addAll(List<GameObject> objects) {
+		ensureCapacity(rows + objects.size());
+		for (int i = 0; i < objects.size(); i++) {
+			add(objects.get(i));
+		}
+	}
+
+	/**
+	 * Removes several objects at once. The empty rows they leave are
+	 * compacted once at the end instead of while removing.
+	 *
+	 * @param objects
+	 */
+	public void removeAll(List<GameObject> objects) {
+		for (int i = 0; i < objects.size(); i++) {
+			GameObject o = objects.get(i);
+			if (contains(o)) {
+				removeRow(o);
+				fireRemoved(o);
+			}
+		}
+		if (emptyRows > rows / 2) {
+			compact();
+		}
+	}
+
+	public boolean contains(GameObject o) {
+		return o.layer == this;
+	}
+
+	public void move(GameObject o, double x, double y) {
+		if (!contains(o)) {
+			o.x = (float) x;
+			o.y = (float) y;
+			return;
+		}
+		int row = o.row;
+		index.remove(row, this.x[row], this.y[row], width[row], height[row]);
+		fireRemoved(o);
+		this.x[row] = (float) x;
+		this.y[row] = (float) y;
+		index.insert(row, this.x[row], this.y[row], width[row], height[row]);
+		fireAdded(o);
+	}
+
+	/**
+	 * Returns the int that the owner of the layer has set for the object, or
+	 * 0 if none has been set.
+	 *
+	 * @param o an object of this layer
+	 * @return
+	 */
+	public int getTag(GameObject o) {
+		return tags == null ? 0 : tags[o.row];
+	}
+
+	/**
+	 * Sets an int for the object that stays with it while it is in the layer,
+	 * also when it is moved. The tags are only allocated once one is set.
+	 *
+	 * @param o an object of this layer
+	 * @param tag
+	 */
+	public void setTag(GameObject o, int tag) {
+		if (tags == null) {
+			tags = new int[x.length];
+		}
+		tags[o.row] = tag;
+	}
+
+	/**
+	 * Copies the fields of the objects into the given arrays in draw order.
+	 * The arrays must have room for {@link #size()} objects.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param scale
+	 * @param spriteId
+	 */
+	public void copyTo(float[] x, float[] y, float[] width, float[] height, float[] scale, short[] spriteId) {
+		if (emptyRows == 0) {
+			System.arraycopy(this.x, 0, x, 0, rows);
+			System.arraycopy(this.y, 0, y, 0, rows);
+			System.arraycopy(this.width, 0, width, 0, rows);
+			System.arraycopy(this.height, 0, height, 0, rows);
+			System.arraycopy(this.scale, 0, scale, 0, rows);
+			System.arraycopy(this.spriteId, 0, spriteId, 0, rows);
+			return;
+		}
+		int n = 0;
+		for (int row = 0; row < rows; row++) {
+			if (isUsed(row)) {
+				x[n] = this.x[row];
+				y[n] = this.y[row];
+				width[n] = this.width[row];
+				height[n] = this.height[row];
+				scale[n] = this.scale[row];
+				spriteId[n] = this.spriteId[row];
+				n++;
+			}
+		}
+	}
+
+	/**
+	 * Returns all objects whose bounds touch the given rectangle.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public ArrayList<GameObject> getObjectsIn(double x, double y, double width, double height) {
+		ArrayList<GameObject> result = new ArrayList<GameObject>();
+		addObjectsIn(x, y, width, height, result);
+		return result;
+	}
+
+	/**
+	 * Returns the objects that a selection rectangle touches, either in one
+	 * layer or in every layer.
+	 *
+	 * @param levelMap
+	 * @param layer the index of the layer, or -1 for every layer
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static ArrayList<GameObject> select(ArrayList<Layer> levelMap, int layer, double x, double y,
+			double width, double height) {
+		ArrayList<GameObject> result = new ArrayList<GameObject>();
+		for (int i = 0; i < levelMap.size(); i++) {
+			if (layer < 0 || layer == i) {
+				levelMap.get(i).addObjectsIn(x, y, width, height, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns all objects whose bounds touch the given rectangle, sorted in
+	 * the order they should be drawn in.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public ArrayList<GameObject> getObjectsInDrawOrder(double x, double y, double width, double height) {
+		SpatialIndex.Rows rows = rowsIn(x, y, width, height);
+		Arrays.sort(rows.rows, 0, rows.size);
+		ArrayList<GameObject> result = new ArrayList<GameObject>(rows.size);
+		for (int i = 0; i < rows.size; i++) {
+			result.add(view(rows.rows[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * Hands the fields of every object whose bounds touch the given rectangle
+	 * to the visitor, in the order they should be drawn in, without creating
+	 * views of the objects.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param visitor
+	 * @return the number of objects that were visited
+	 */
+	public int forEachInDrawOrder(double x, double y, double width, double height, ObjectVisitor visitor) {
+		SpatialIndex.Rows rows = rowsIn(x, y, width, height);
+		Arrays.sort(rows.rows, 0, rows.size);
+		for (int i = 0; i < rows.size; i++) {
+			int row = rows.rows[i];
+			visitor.visit(this.x[row], this.y[row], this.width[row], this.height[row], scale[row], spriteId[row]);
+		}
+		return rows.size;
+	}
+
+	/**
+	 * Returns the top most object that contains the given point, or null if
+	 * there is no object at the point.
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public GameObject getObjectAt(double x, double y) {
+		// GameObject.contains has a margin of a couple of pixels around the
+		// object, so the query has to cover it as well.
+		SpatialIndex.Rows rows = rowsIn(x - 2, y - 2, 4, 4);
+		int top = -1;
+		for (int i = 0; i < rows.size; i++) {
+			int row = rows.rows[i];
+			if (x > this.x[row] - 1 && x < this.x[row] + width[row] + 2 && y > this.y[row] - 1
+					&& y < this.y[row] + height[row] + 2 && row > top) {
+				top = row;
+			}
+		}
+		return top < 0 ? null : view(top);
+	}
+
+	/**
+	 * Rebuilds the spatial index if the cell size has changed. The cell size
+	 * should follow the tile size of the level.
+	 *
+	 * @param cellSize
+	 */
+	public void setCellSize(int cellSize) {
+		if (cellSize == index.getTileSize() || cellSize <= 0) {
+			return;
+		}
+		index = new SpatialIndex(cellSize, x.length);
+		for (int row = 0; row < rows; row++) {
+			if (isUsed(row)) {
+				index.insert(row, x[row], y[row], width[row], height[row]);
+			}
+		}
+	}
+
+	/**
+	 * Finds the layer that the object is placed in.
+	 *
+	 * @param levelMap
+	 * @param o
+	 * @return the layer, or null if the object is not placed in any layer.
+	 */
+	public static Layer layerOf(ArrayList<Layer> levelMap, GameObject o) {
+		for (int i = 0; i < levelMap.size(); i++) {
+			if (levelMap.get(i).contains(o)) {
+				return levelMap.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of other objects in the layer that overlap the
+	 * object at the given index, without creating views.
+	 */
+	int countOverlapping(int i) {
+		compact();
+		SpatialIndex.Rows rows = rowsIn(x[i], y[i], width[i], height[i]);
+		int count = 0;
+		for (int j = 0; j < rows.size; j++) {
+			int row = rows.rows[j];
+			if (row != i && Math.min(x[i] + width[i], x[row] + width[row]) > Math.max(x[i], x[row])
+					&& Math.min(y[i] + height[i], y[row] + height[row]) > Math.max(y[i], y[row])) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	Property[] getProperties(int row) {
+		return properties == null ? null : properties.get(row);
+	}
+
+	void setProperties(int row, Property[] properties) {
+		if (properties != null) {
+			if (this.properties == null) {
+				this.properties = new HashMap<Integer, Property[]>();
+			}
+			this.properties.put(row, properties);
+		} else if (this.properties != null) {
+			this.properties.remove(row);
+		}
+	}
+
+	private void addObjectsIn(double x, double y, double width, double height, ArrayList<GameObject> result) {
+		SpatialIndex.Rows rows = rowsIn(x, y, width, height);
+		result.ensureCapacity(result.size() + rows.size);
+		for (int i = 0; i < rows.size; i++) {
+			result.add(view(rows.rows[i]));
+		}
+	}
+
+	/**
+	 * Returns the rows whose bounds touch the given rectangle.
+	 */
+	private SpatialIndex.Rows rowsIn(double x, double y, double width, double height) {
+		SpatialIndex.Rows candidates = new SpatialIndex.Rows();
+		index.query(x, y, width, height, candidates);
+		int n = 0;
+		for (int i = 0; i < candidates.size; i++) {
+			int row = candidates.rows[i];
+			if (this.x[row] > x + width || this.x[row] + this.width[row] < x || this.y[row] > y + height
+					|| this.y[row] + this.height[row] < y) {
+				continue;
+			}
+			candidates.rows[n++] = row;
+		}
+		candidates.size = n;
+		return candidates;
+	}
+
+	/**
+	 * Returns the view of a row, creating it if there is none in use.
+	 */
+	private GameObject view(int row) {
+		removeClearedViews();
+		ViewReference ref = views.get(row);
+		GameObject o = ref == null ? null : ref.get();
+		if (o == null) {
+			o = new GameObject();
+			o.layer = this;
+			o.row = row;
+			views.put(row, new ViewReference(o, row, clearedViews));
+		}
+		return o;
+	}
+
+	private void removeClearedViews() {
+		ViewReference ref;
+		while ((ref = (ViewReference) clearedViews.poll()) != null) {
+			// The row could have a new view by now.
+			if (views.get(ref.row) == ref) {
+				views.remove(ref.row);
+			}
+		}
+	}
+
+	private int addRow(float x, float y, float width, float height, float scale, short spriteId) {
+		ensureCapacity(rows + 1);
+		int row = rows++;
+		this.x[row] = x;
+		this.y[row] = y;
+		this.width[row] = width;
+		this.height[row] = height;
+		this.scale[row] = scale;
+		this.spriteId[row] = spriteId;
+		if (tags != null) {
+			tags[row] = 0;
+		}
+		used[row >> 6] |= 1L << row;
+		index.insert(row, x, y, width, height);
+		return row;
+	}
+
+	/**
+	 * Takes an object out of its row. The object gets its fields back, so it
+	 * can be added again later, such as when a deletion is undone.
+	 */
+	private void removeRow(GameObject o) {
+		int row = o.row;
+		index.remove(row, x[row], y[row], width[row], height[row]);
+		o.x = x[row];
+		o.y = y[row];
+		o.width = width[row];
+		o.height = height[row];
+		o.scale = scale[row];
+		o.spriteId = spriteId[row];
+		o.properties = properties == null ? null : properties.remove(row);
+		o.layer = null;
+		o.row = -1;
+		views.remove(row);
+		used[row >> 6] &= ~(1L << row);
+		emptyRows++;
+	}
+
+	private boolean isUsed(int row) {
+		return (used[row >> 6] & (1L << row)) != 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= x.length) {
+			return;
+		}
+		int length = Math.max(capacity, x.length + (x.length >> 1));
+		x = Arrays.copyOf(x, length);
+		y = Arrays.copyOf(y, length);
+		width = Arrays.copyOf(width, length);
+		height = Arrays.copyOf(height, length);
+		scale = Arrays.copyOf(scale, length);
+		spriteId = Arrays.copyOf(spriteId, length);
+		used = Arrays.copyOf(used, (length + 63) >> 6);
+		if (tags != null) {
+			tags = Arrays.copyOf(tags, length);
+		}
+	}
+
+	/**
+	 * Moves the rows down to fill the empty rows, keeping their order, and
+	 * gives the index, the views and the properties the new rows.
+	 */
+	private void compact() {
+		if (emptyRows == 0) {
+			return;
+		}
+		int[] newRows = new int[rows];
+		int n = 0;
+		for (int row = 0; row < rows; row++) {
+			if (!isUsed(row)) {
+				continue;
+			}
+			newRows[row] = n;
+			x[n] = x[row];
+			y[n] = y[row];
+			width[n] = width[row];
+			height[n] = height[row];
+			scale[n] = scale[row];
+			spriteId[n] = spriteId[row];
+			if (tags != null) {
+				tags[n] = tags[row];
+			}
+			n++;
+		}
+		index.renumber(newRows, n);
+
+		removeClearedViews();
+		HashMap<Integer, ViewReference> oldViews = views;
+		views = new HashMap<Integer, ViewReference>();
+		for (ViewReference ref : oldViews.values()) {
+			GameObject o = ref.get();
+			if (o != null) {
+				o.row = newRows[ref.row];
+				ref.row = o.row;
+				views.put(o.row, ref);
+			}
+		}
+		if (properties != null) {
+			HashMap<Integer, Property[]> oldProperties = properties;
+			properties = new HashMap<Integer, Property[]>();
+			for (Map.Entry<Integer, Property[]> e : oldProperties.entrySet()) {
+				properties.put(newRows[e.getKey()], e.getValue());
+			}
+		}
+
+		Arrays.fill(used, 0);
+		for (int row = 0; row < n; row++) {
+			used[row >> 6] |= 1L << row;
+		}
+		rows = n;
+		emptyRows = 0;
+	}
+
+	private void fireAdded(GameObject o) {
+		for (int i = 0; i < listeners.size(); i++) {
+			listeners.get(i).objectAdded(this, o);
+		}
+	}
+
+	private void fireRemoved(GameObject o) {
+		for (int i = 0; i < listeners.size(); i++) {
+			listeners.get(i).objectRemoved(this, o);
+		}
+	}
+
+	/**
+	 * Weak reference to the view of a row, which knows the row so it can be
+	 * taken out of the map of views once it has been cleared.
+	 */
+	private static class ViewReference extends WeakReference<GameObject> {
+		private int row;
+
+		private ViewReference(GameObject o, int row, ReferenceQueue<GameObject> queue) {
+			super(o, queue);
+			this.row = row;
+		}
+	}
+}
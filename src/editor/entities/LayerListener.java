@@ -0,0 +1,17 @@
+package editor.entities;
+
+/**
+ * Gets notified when objects are added to or removed from a layer. Moving an
+ * object is reported as a removal at the old position followed by an
+ * addition at the new position.
+ *
+ * @author Jesper Bergstrom
+ * @name LayerListener.java
+ * @version 0.00.00
+ */
+public interface LayerListener {
+
+	void objectAdded(Layer layer, GameObject o);
+
+	void objectRemoved(Layer layer, GameObject o);
+}
@@ -0,0 +1,15 @@
+package editor.entities;
+
+/**
+ * Gets the fields of the objects of a layer one object at a time, straight
+ * from the columns of the layer, so code that only reads many objects, such
+ * as drawing them, does not need a view of each object.
+ *
+ * @author Jesper Bergstrom
+ * @name ObjectVisitor.java
+ * @version 0.00.00
+ */
+public interface ObjectVisitor {
+
+	void visit(float x, float y, float width, float height, float scale, short spriteId);
+}
@@ -0,0 +1,123 @@
+package editor.entities;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * Creates the outline images that are drawn around selected and overlapping
+ * objects. The outline is found with a Sobel filter on the alpha channel of
+ * the sprite, which is computed once and can then be tinted in any number of
+ * colors. The outline images are 5 pixels bigger than the sprite on every
+ * side.
+ * 
+ * @author Jesper Bergstrom
+ * @name OutlineGenerator.java
+ * @version 0.00.00
+ */
+public class OutlineGenerator {
+
+	public static final int BORDER = 5;
+	// Pixels with an alpha value above this are treated as part of the sprite.
+	private static final int OPACITY_THRESHOLD = 12;
+
+	/**
+	 * Creates one outline image for each of the given colors.
+	 * 
+	 * @param img
+	 * @param colors
+	 * @return
+	 */
+	public static WritableImage[] createOutlines(Image img, Color... colors) {
+		int width = (int) img.getWidth();
+		int height = (int) img.getHeight();
+		int[] argb = new int[width * height];
+		PixelReader pr = img.getPixelReader();
+		pr.getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
+
+		byte[] edges = sobel(argb, width, height);
+		int outWidth = width + BORDER * 2;
+		int outHeight = height + BORDER * 2;
+		WritableImage[] result = new WritableImage[colors.length];
+		for (int i = 0; i < colors.length; i++) {
+			WritableImage out = new WritableImage(outWidth, outHeight);
+			PixelWriter pw = out.getPixelWriter();
+			pw.setPixels(0, 0, outWidth, outHeight, PixelFormat.getIntArgbInstance(), tint(edges, colors[i]), 0,
+					outWidth);
+			result[i] = out;
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the outline of an image given as ARGB pixels. The result is a mask
+	 * that is BORDER pixels bigger than the image on every side, with a 1 for
+	 * every pixel of the outline.
+	 * 
+	 * @param argb
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static byte[] sobel(int[] argb, int width, int height) {
+		int w = width + BORDER * 2;
+		int h = height + BORDER * 2;
+
+		// The sprite is white where it is opaque and black everywhere else.
+		byte[] mask = new byte[w * h];
+		for (int y = 0; y < height; y++) {
+			int row = (y + BORDER) * w + BORDER;
+			for (int x = 0; x < width; x++) {
+				if ((argb[y * width + x] >>> 24) > OPACITY_THRESHOLD) {
+					mask[row + x] = 1;
+				}
+			}
+		}
+
+		// The mask only holds 0 and 1, so any gradient that is not zero is at
+		// least 1 and gives a fully opaque outline pixel.
+		byte[] edges = new byte[w * h];
+		for (int y = 1; y < h - 1; y++) {
+			for (int x = 1; x < w - 1; x++) {
+				int i = y * w + x;
+				int topLeft = mask[i - w - 1];
+				int top = mask[i - w];
+				int topRight = mask[i - w + 1];
+				int left = mask[i - 1];
+				int right = mask[i + 1];
+				int bottomLeft = mask[i + w - 1];
+				int bottom = mask[i + w];
+				int bottomRight = mask[i + w + 1];
+
+				int gx = -topLeft - 2 * left - bottomLeft + topRight + 2 * right + bottomRight;
+				int gy = -topLeft - 2 * top - topRight + bottomLeft + 2 * bottom + bottomRight;
+				if (gx != 0 || gy != 0) {
+					edges[i] = 1;
+				}
+			}
+		}
+		return edges;
+	}
+
+	/**
+	 * Turns an outline mask into ARGB pixels of the given color.
+	 * 
+	 * @param edges
+	 * @param color
+	 * @return
+	 */
+	public static int[] tint(byte[] edges, Color color) {
+		int argb = 0xFF000000 | (int) Math.round(color.getRed() * 255) << 16
+				| (int) Math.round(color.getGreen() * 255) << 8 | (int) Math.round(color.getBlue() * 255);
+		int[] pixels = new int[edges.length];
+		for (int i = 0; i < edges.length; i++) {
+			if (edges[i] != 0) {
+				pixels[i] = argb;
+			}
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,117 @@
+package editor.entities;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Keeps track of which objects overlap another object in the same layer.
+ * The overlaps are found with the spatial index of each layer, so only the
+ * objects near an object have to be checked, and only objects that are
+ * placed, moved or deleted are checked again after the first pass.
+ *
+ * @author Jesper Bergstrom
+ * @name OverlapTracker.java
+ * @version 0.00.00
+ */
+public class OverlapTracker implements LayerListener {
+
+	private ArrayList<Layer> levelMap;
+	// Number of objects that each object overlaps. Objects that do not
+	// overlap anything are not in the map.
+	private IdentityHashMap<GameObject, Integer> overlapCounts;
+	private boolean enabled = false;
+
+	public OverlapTracker(ArrayList<Layer> levelMap) {
+		this.levelMap = levelMap;
+		overlapCounts = new IdentityHashMap<GameObject, Integer>();
+	}
+
+	/**
+	 * Starts or stops tracking overlaps. When tracking starts, every object
+	 * in the level is checked once.
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		if (enabled == this.enabled) {
+			return;
+		}
+		this.enabled = enabled;
+		overlapCounts.clear();
+		for (int i = 0; i < levelMap.size(); i++) {
+			Layer layer = levelMap.get(i);
+			if (enabled) {
+				layer.addListener(this);
+				// Only the objects that overlap something need a view.
+				for (int j = 0; j < layer.size(); j++) {
+					int count = layer.countOverlapping(j);
+					if (count > 0) {
+						setCount(layer.get(j), count);
+					}
+				}
+			} else {
+				layer.removeListener(this);
+			}
+		}
+	}
+
+	public boolean isOverlapping(GameObject o) {
+		return overlapCounts.containsKey(o);
+	}
+
+	public Set<GameObject> getOverlapping() {
+		return overlapCounts.keySet();
+	}
+
+	@Override
+	public void objectAdded(Layer layer, GameObject o) {
+		ArrayList<GameObject> overlapping = getOverlapping(layer, o);
+		for (int i = 0; i < overlapping.size(); i++) {
+			GameObject p = overlapping.get(i);
+			setCount(p, getCount(p) + 1);
+		}
+		setCount(o, overlapping.size());
+	}
+
+	@Override
+	public void objectRemoved(Layer layer, GameObject o) {
+		ArrayList<GameObject> overlapping = getOverlapping(layer, o);
+		for (int i = 0; i < overlapping.size(); i++) {
+			GameObject p = overlapping.get(i);
+			setCount(p, getCount(p) - 1);
+		}
+		overlapCounts.remove(o);
+	}
+
+	/**
+	 * Returns every other object in the layer that overlaps the object.
+	 */
+	private ArrayList<GameObject> getOverlapping(Layer layer, GameObject o) {
+		ArrayList<GameObject> candidates = layer.getObjectsIn(o.getX(), o.getY(), o.getWidth(), o.getHeight());
+		ArrayList<GameObject> result = new ArrayList<GameObject>();
+		for (int i = 0; i < candidates.size(); i++) {
+			GameObject p = candidates.get(i);
+			if (p != o && o.overlaps(p)) {
+				result.add(p);
+			}
+		}
+		return result;
+	}
+
+	private int getCount(GameObject o) {
+		Integer count = overlapCounts.get(o);
+		if (count == null) {
+			return 0;
+		}
+		return count;
+	}
+
+	private void setCount(GameObject o, int count) {
+		if (count > 0) {
+			overlapCounts.put(o, count);
+		} else {
+			overlapCounts.remove(o);
+		}
+	}
+}
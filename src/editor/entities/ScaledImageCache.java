@@ -0,0 +1,83 @@
+package editor.entities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javafx.scene.image.Image;
+
+/**
+ * Cache of sprite images that have been decoded at a specific size, like the
+ * preview of the object at the cursor or the thumbnails in the object panel.
+ * The least recently used image is evicted once the cache is full.
+ *
+ * @author Jesper Bergstrom
+ * @name ScaledImageCache.java
+ * @version 0.00.00
+ */
+public class ScaledImageCache {
+
+	private LinkedHashMap<Key, Image> images;
+
+	public ScaledImageCache(final int capacity) {
+		images = new LinkedHashMap<Key, Image>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Image> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the image of the sprite scaled to the given size. The image is
+	 * only decoded the first time it is requested.
+	 *
+	 * @param sprite
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public Image get(Sprite sprite, double width, double height) {
+		Key key = new Key(sprite.id, width, height);
+		Image img = images.get(key);
+		if (img == null) {
+			img = new Image("file:" + sprite.imageURL, width, height, false, false);
+			images.put(key, img);
+		}
+		return img;
+	}
+
+	public void clear() {
+		images.clear();
+	}
+
+	private static class Key {
+		private int spriteId;
+		private double width;
+		private double height;
+
+		private Key(int spriteId, double width, double height) {
+			this.spriteId = spriteId;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) obj;
+			return spriteId == k.spriteId && width == k.width && height == k.height;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = spriteId;
+			hash = 31 * hash + Double.hashCode(width);
+			hash = 31 * hash + Double.hashCode(height);
+			return hash;
+		}
+	}
+}
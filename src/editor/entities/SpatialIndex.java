@@ -0,0 +1,310 @@
+package editor.entities;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the rows of a layer. Every object is put in the one cell
+ * that its top left corner is in, and the rows of a cell are linked through
+ * an array with one int per row, so the index costs a few bytes per object.
+ * A query looks at the cells the rectangle covers, plus enough cells above
+ * and to the left of it to reach the biggest object in the grid.
+ *
+ * A cell is several tiles wide, so a cell of a tile map holds many objects
+ * and the table of cells stays small. Objects that are much bigger than a
+ * cell are kept in a list of their own, so that one huge object does not
+ * make every query look at more cells.
+ *
+ * The index only keeps rows, so an object has to be removed with the bounds
+ * it was inserted with before its position or size is changed, and inserted
+ * again afterwards. Queries return every row that may touch the rectangle,
+ * the layer checks the bounds.
+ *
+ * @author Jesper Bergstrom
+ * @name SpatialIndex.java
+ * @version 0.00.00
+ */
+class SpatialIndex {
+
+	// Width and height of a cell in tiles.
+	static final int CELL_TILES = 8;
+	// Objects that are bigger than this many cells are not put in the grid.
+	private static final int MAX_EXTENT = 4;
+	// The packed cell coordinates are multiplied by an odd constant and the
+	// top bits of the product pick the slot. Using the packed coordinates
+	// directly would make every cell on a diagonal collide.
+	private static final long KEY_MULTIPLIER = 0x9E3779B97F4A7C15L;
+	private static final int MIN_CAPACITY = 16;
+
+	// Packed cell coordinates of each slot.
+	private long[] keys;
+	// The first row of the cell of each slot plus one, or 0 if the slot is
+	// empty.
+	private int[] heads;
+	// The next row in the same cell plus one for each row, or 0 for the last
+	// row of a cell.
+	private int[] next;
+	// Rows of the objects that are too big for the grid.
+	private int[] big = new int[4];
+	private int bigCount = 0;
+	// The biggest width and height of the objects in the grid.
+	private float extentX = 0;
+	private float extentY = 0;
+	private int size = 0;
+	private int shift;
+	private int tileSize;
+	private double cellSize;
+
+	/**
+	 * Creates an index with room for the given number of rows before it has
+	 * to grow.
+	 *
+	 * @param tileSize
+	 * @param capacity
+	 */
+	SpatialIndex(int tileSize, int capacity) {
+		this.tileSize = tileSize;
+		cellSize = (double) tileSize * CELL_TILES;
+		next = new int[Math.max(capacity, 1)];
+		// The table is kept at most three quarters full. It starts out with
+		// room for a cell per 16 objects and grows if the objects are spread
+		// out more than that.
+		int cells = Math.max(MIN_CAPACITY, Math.min(capacity / 16, 1 << 28));
+		allocate(Integer.highestOneBit(cells * 2 - 1) << 1);
+	}
+
+	int getTileSize() {
+		return tileSize;
+	}
+
+	void insert(int row, float x, float y, float width, float height) {
+		if (row >= next.length) {
+			next = Arrays.copyOf(next, Math.max(row + 1, next.length + (next.length >> 1)));
+		}
+		if (isBig(width, height)) {
+			if (bigCount == big.length) {
+				big = Arrays.copyOf(big, bigCount * 2);
+			}
+			big[bigCount++] = row;
+			return;
+		}
+		extentX = Math.max(extentX, width);
+		extentY = Math.max(extentY, height);
+		long key = key(cell(x), cell(y));
+		int mask = heads.length - 1;
+		int i = slot(key);
+		while (heads[i] != 0) {
+			if (keys[i] == key) {
+				next[row] = heads[i];
+				heads[i] = row + 1;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		heads[i] = row + 1;
+		next[row] = 0;
+		size++;
+		if (size > heads.length / 4 * 3) {
+			grow();
+		}
+	}
+
+	void remove(int row, float x, float y, float width, float height) {
+		if (isBig(width, height)) {
+			for (int j = 0; j < bigCount; j++) {
+				if (big[j] == row) {
+					big[j] = big[--bigCount];
+					return;
+				}
+			}
+			return;
+		}
+		int i = find(key(cell(x), cell(y)));
+		if (i < 0) {
+			return;
+		}
+		if (heads[i] == row + 1) {
+			heads[i] = next[row];
+			if (heads[i] == 0) {
+				delete(i);
+			}
+			return;
+		}
+		for (int r = heads[i]; r != 0; r = next[r - 1]) {
+			if (next[r - 1] == row + 1) {
+				next[r - 1] = next[row];
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds every row whose object may touch the given rectangle to the
+	 * result. Each row is added once.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @param result
+	 */
+	void query(double x, double y, double width, double height, Rows result) {
+		// An object whose corner is up to its size to the left of or above
+		// the rectangle still reaches into it.
+		int minX = cell(x - extentX);
+		int minY = cell(y - extentY);
+		int maxX = cell(x + width);
+		int maxY = cell(y + height);
+		long cellCount = ((long) maxX - minX + 1) * ((long) maxY - minY + 1);
+
+		if (cellCount > size) {
+			// The rectangle covers more cells than there are in the table,
+			// so it is cheaper to walk the table than the cells.
+			for (int i = 0; i < heads.length; i++) {
+				if (heads[i] == 0) {
+					continue;
+				}
+				int cx = (int) (keys[i] >> 32);
+				int cy = (int) keys[i];
+				if (cx >= minX && cx <= maxX && cy >= minY && cy <= maxY) {
+					collect(i, result);
+				}
+			}
+		} else {
+			for (int cx = minX; cx <= maxX; cx++) {
+				for (int cy = minY; cy <= maxY; cy++) {
+					int i = find(key(cx, cy));
+					if (i >= 0) {
+						collect(i, result);
+					}
+				}
+			}
+		}
+		for (int j = 0; j < bigCount; j++) {
+			result.add(big[j]);
+		}
+	}
+
+	/**
+	 * Gives every row a new number, such as after the rows of the layer have
+	 * been compacted.
+	 *
+	 * @param newRows the new number of each old row
+	 * @param rows the number of rows from now on
+	 */
+	void renumber(int[] newRows, int rows) {
+		int[] newNext = new int[Math.max(rows, next.length)];
+		for (int i = 0; i < heads.length; i++) {
+			if (heads[i] == 0) {
+				continue;
+			}
+			for (int r = heads[i]; r != 0; r = next[r - 1]) {
+				int n = next[r - 1];
+				newNext[newRows[r - 1]] = n == 0 ? 0 : newRows[n - 1] + 1;
+			}
+			heads[i] = newRows[heads[i] - 1] + 1;
+		}
+		next = newNext;
+		for (int j = 0; j < bigCount; j++) {
+			big[j] = newRows[big[j]];
+		}
+	}
+
+	private void collect(int i, Rows result) {
+		for (int r = heads[i]; r != 0; r = next[r - 1]) {
+			result.add(r - 1);
+		}
+	}
+
+	/**
+	 * Empties a slot and moves the following slots of the probe sequence
+	 * back, so that lookups do not stop at the empty slot.
+	 */
+	private void delete(int i) {
+		int mask = heads.length - 1;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (heads[j] == 0) {
+				break;
+			}
+			int home = slot(keys[j]);
+			// The cell in slot j can only move back if its home slot is not
+			// between the empty slot and j.
+			boolean between = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+			if (!between) {
+				keys[i] = keys[j];
+				heads[i] = heads[j];
+				i = j;
+			}
+		}
+		heads[i] = 0;
+		size--;
+	}
+
+	private int find(long key) {
+		int mask = heads.length - 1;
+		int i = slot(key);
+		while (heads[i] != 0) {
+			if (keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldHeads = heads;
+		allocate(oldHeads.length * 2);
+		int mask = heads.length - 1;
+		for (int i = 0; i < oldHeads.length; i++) {
+			if (oldHeads[i] != 0) {
+				int j = slot(oldKeys[i]);
+				while (heads[j] != 0) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				heads[j] = oldHeads[i];
+			}
+		}
+	}
+
+	private void allocate(int length) {
+		keys = new long[length];
+		heads = new int[length];
+		shift = 64 - Integer.numberOfTrailingZeros(length);
+	}
+
+	private boolean isBig(float width, float height) {
+		return width > MAX_EXTENT * cellSize || height > MAX_EXTENT * cellSize;
+	}
+
+	private int slot(long key) {
+		return (int) ((key * KEY_MULTIPLIER) >>> shift);
+	}
+
+	private int cell(double value) {
+		return (int) Math.floor(value / cellSize);
+	}
+
+	private static long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * A growing list of rows that a query adds to.
+	 */
+	static class Rows {
+		int[] rows = new int[16];
+		int size = 0;
+
+		void add(int row) {
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+			}
+			rows[size++] = row;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package editor.entities;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+
+/**
+ * An entry in the sprite catalog. Holds everything that is shared between
+ * all placed objects of the same sprite, so that the objects themselves only
+ * need to store the id of their sprite.
+ *
+ * The size of the sprite is known as soon as it is in the catalog, but the
+ * images are loaded in the background and are null until they are ready.
+ *
+ * @author Jesper Bergstrom
+ * @name Sprite.java
+ * @version 0.00.00
+ */
+public class Sprite {
+	public int id;
+	public String name;
+	public String type;
+	public String imageURL;
+	public double width = 32;
+	public double height = 32;
+	public volatile Image image;
+	public volatile WritableImage selectedPixels;
+	public volatile WritableImage highlightPixels;
+	public Property[] defaultProperties;
+
+	// Where the sprite is in the loading queue, see SpriteRegistry.
+	final AtomicInteger loadState = new AtomicInteger();
+
+	public Sprite(int id, String name, String type, String imageURL) {
+		this.id = id;
+		this.name = name;
+		this.type = type;
+		this.imageURL = imageURL;
+	}
+
+	public boolean isLoaded() {
+		return loadState.get() == SpriteRegistry.LOADED;
+	}
+
+	/**
+	 * Creates a new set of properties with the default values of this sprite.
+	 * Each object gets its own copy so that changing a property of one object
+	 * does not change it for every object of the sprite.
+	 *
+	 * @return
+	 */
+	public Property[] createProperties() {
+		if (defaultProperties.length == 0) {
+			return defaultProperties;
+		}
+		Property[] p = new Property[defaultProperties.length];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = new Property(defaultProperties[i].name, defaultProperties[i].value);
+		}
+		return p;
+	}
+}
@@ -0,0 +1,14 @@
+package editor.entities;
+
+/**
+ * Listener that is told when the images of a sprite have been loaded. It is
+ * always called on the JavaFX application thread.
+ *
+ * @author Jesper Bergstrom
+ * @name SpriteListener.java
+ * @version 0.00.00
+ */
+public interface SpriteListener {
+
+	public void spriteLoaded(Sprite sprite);
+}
@@ -0,0 +1,295 @@
+package editor.entities;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * Catalog of every sprite that can be placed in a level. The sprite folder
+ * is scanned once, when the catalog is first used, and each sprite gets a
+ * dense id. Placed objects store that id so their type and images can be
+ * looked up by index instead of by name or by searching the file system.
+ *
+ * Only the names and the sizes, which are read from the PNG headers, are
+ * known up front. The images and outlines of a sprite are decoded by a pool
+ * of worker threads, either the first time the sprite is drawn or when the
+ * whole catalog is prefetched. Sprites that are needed for drawing are put
+ * in front of the queue so they do not have to wait for the prefetch.
+ *
+ * @author Jesper Bergstrom
+ * @name SpriteRegistry.java
+ * @version 0.00.00
+ */
+public class SpriteRegistry {
+
+	public static final String SPRITE_PATH = "./res/sprites";
+
+	private static final Property[] NO_PROPERTIES = new Property[0];
+
+	// Load states of a sprite.
+	static final int NOT_LOADED = 0;
+	static final int QUEUED = 1;
+	static final int PRIORITY_QUEUED = 2;
+	static final int LOADING = 3;
+	static final int LOADED = 4;
+
+	private static SpriteRegistry instance;
+
+	private ArrayList<Sprite> sprites;
+	private HashMap<String, Integer> ids;
+	private ScaledImageCache scaledImages;
+	private LinkedBlockingDeque<Sprite> loadQueue;
+	private CopyOnWriteArrayList<SpriteListener> listeners;
+
+	private SpriteRegistry() {
+		sprites = new ArrayList<Sprite>();
+		ids = new HashMap<String, Integer>();
+		scaledImages = new ScaledImageCache(512);
+		loadQueue = new LinkedBlockingDeque<Sprite>();
+		listeners = new CopyOnWriteArrayList<SpriteListener>();
+		scan(new File(SPRITE_PATH));
+		startLoaders(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
+
+	public static SpriteRegistry getInstance() {
+		if (instance == null) {
+			instance = new SpriteRegistry();
+		}
+		return instance;
+	}
+
+	/**
+	 * Adds every sprite in the sprite folder to the catalog. Each sub folder
+	 * of the sprite folder is a type and the files in it are the sprites of
+	 * that type.
+	 *
+	 * @param folder
+	 */
+	private void scan(File folder) {
+		File[] types = folder.listFiles();
+		if (types == null) {
+			return;
+		}
+		for (int i = 0; i < types.length; i++) {
+			File[] files = types[i].listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (int j = 0; j < files.length; j++) {
+				String name = files[j].getName().replaceAll(".png", "");
+				Sprite sprite = new Sprite(sprites.size(), name, types[i].getName(), files[j].getAbsolutePath());
+				readSize(sprite);
+				sprite.defaultProperties = defaultProperties(name);
+				sprites.add(sprite);
+				if (!ids.containsKey(name)) {
+					ids.put(name, sprite.id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the size of the sprite from the IHDR chunk of the PNG file, which
+	 * is always the first chunk, so the image does not have to be decoded.
+	 *
+	 * @param sprite
+	 */
+	private void readSize(Sprite sprite) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(sprite.imageURL))) {
+			byte[] header = new byte[16];
+			in.readFully(header);
+			if ((header[0] & 0xFF) != 0x89 || header[1] != 'P' || header[2] != 'N' || header[3] != 'G') {
+				return;
+			}
+			sprite.width = in.readInt();
+			sprite.height = in.readInt();
+		} catch (IOException e) {
+			System.out.println("Could not read the size of " + sprite.imageURL);
+		}
+	}
+
+	private void startLoaders(int count) {
+		for (int i = 0; i < count; i++) {
+			Thread t = new Thread(() -> {
+				while (true) {
+					try {
+						load(loadQueue.takeFirst());
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}, "Sprite loader " + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Decodes the image of a sprite and creates its outlines. A sprite can be
+	 * in the queue twice if it was prefetched and then needed for drawing, so
+	 * only the first worker that takes it loads it.
+	 *
+	 * @param sprite
+	 */
+	private void load(Sprite sprite) {
+		int state = sprite.loadState.get();
+		if ((state != QUEUED && state != PRIORITY_QUEUED) || !sprite.loadState.compareAndSet(state, LOADING)) {
+			return;
+		}
+		try {
+			Image img = new Image("file:" + sprite.imageURL);
+			if (!img.isError()) {
+				WritableImage[] outlines = OutlineGenerator.createOutlines(img, Color.RED, Color.BLUE);
+				sprite.selectedPixels = outlines[0];
+				sprite.highlightPixels = outlines[1];
+				sprite.image = img;
+			} else {
+				System.out.println("Could not load " + sprite.imageURL);
+			}
+		} catch (RuntimeException e) {
+			// Keep the worker alive, the sprite is only drawn as a placeholder.
+			e.printStackTrace();
+		}
+		sprite.loadState.set(LOADED);
+		if (!listeners.isEmpty()) {
+			Platform.runLater(() -> fireLoaded(sprite));
+		}
+	}
+
+	private void fireLoaded(Sprite sprite) {
+		for (SpriteListener listener : listeners) {
+			listener.spriteLoaded(sprite);
+		}
+	}
+
+	public void addListener(SpriteListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(SpriteListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Puts the sprite first in the loading queue if it is not loaded yet.
+	 *
+	 * @param sprite
+	 */
+	public void request(Sprite sprite) {
+		while (true) {
+			int state = sprite.loadState.get();
+			if (state != NOT_LOADED && state != QUEUED) {
+				return;
+			}
+			if (sprite.loadState.compareAndSet(state, PRIORITY_QUEUED)) {
+				loadQueue.offerFirst(sprite);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queues every sprite that is not loaded yet, after the sprites that have
+	 * already been requested.
+	 */
+	public void prefetch() {
+		for (int i = 0; i < sprites.size(); i++) {
+			Sprite sprite = sprites.get(i);
+			if (sprite.loadState.compareAndSet(NOT_LOADED, QUEUED)) {
+				loadQueue.offerLast(sprite);
+			}
+		}
+	}
+
+	private Property[] defaultProperties(String name) {
+		if (name.equals("grass")) {
+			Property[] p = { new Property("friction", "normal"), new Property("length", "short") };
+			return p;
+		} else if (name.equals("suit")) {
+			Property[] p = { new Property("color", "black") };
+			return p;
+		}
+		return NO_PROPERTIES;
+	}
+
+	/**
+	 * Returns the id of the sprite with the given name, or -1 if there is no
+	 * such sprite.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public int getId(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	public Sprite get(int id) {
+		return sprites.get(id);
+	}
+
+	/**
+	 * Returns the image of the sprite, or null if it is not loaded yet. In
+	 * that case the sprite is requested and the listeners are told when it
+	 * has been loaded.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public Image getImage(int id) {
+		Sprite sprite = sprites.get(id);
+		Image img = sprite.image;
+		if (img == null) {
+			request(sprite);
+		}
+		return img;
+	}
+
+	public WritableImage getSelectedImage(int id) {
+		Sprite sprite = sprites.get(id);
+		WritableImage img = sprite.selectedPixels;
+		if (img == null) {
+			request(sprite);
+		}
+		return img;
+	}
+
+	public WritableImage getHighlightImage(int id) {
+		Sprite sprite = sprites.get(id);
+		WritableImage img = sprite.highlightPixels;
+		if (img == null) {
+			request(sprite);
+		}
+		return img;
+	}
+
+	/**
+	 * Returns the image of the sprite decoded at the given size. Scaled images
+	 * are cached, so asking for the same size again does not read the file.
+	 *
+	 * @param id
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public Image getScaledImage(int id, double width, double height) {
+		return scaledImages.get(sprites.get(id), width, height);
+	}
+
+	public int size() {
+		return sprites.size();
+	}
+}
@@ -1,6 +1,5 @@
 package editor.event;
 
-import java.awt.Point;
 import java.util.ArrayList;
 
 import editor.entities.GameObject;
@@ -11,10 +10,12 @@ import editor.entities.Pair;
  * At the moment, 3 types of events can take place:
  * - Delete: The user provides the objects that were deleted and the index 
  *   of the layer the objects were placed in.
- * - Move: The user provides the objects that were moved, the starting point
- *   and the ending point of each object.
+ * - Move: The user provides the objects that were moved and how far each
+ *   object was moved. If every object was moved the same distance only one
+ *   offset is stored for the whole event.
  * - Place: The user provides the objects that were placed and the index
  *   of the layer the objects were placed in.
+ * - Compound: A group of events that are undone and redone together.
  * 
  * @author Jesper Bergstrom
  * @name EditorEvent.java
@@ -22,19 +23,139 @@ import editor.entities.Pair;
  */
 public class EditorEvent {
 	
+	// Rough sizes in bytes, used to keep the history within its budget.
+	private static final int EVENT_SIZE = 64;
+	private static final int PAIR_SIZE = 40;
+	private static final int OBJECT_SIZE = 48;
+	private static final int REFERENCE_SIZE = 8;
+	private static final int DELTA_SIZE = 16;
+	
 	public EventType type;
 	public ArrayList<Pair<GameObject, Integer>> deletedObjects;
-	public ArrayList<Pair<GameObject, Pair<Point, Point>>> movedObjects;
 	public ArrayList<Pair<GameObject, Integer>> placedObjects;
+	public GameObject[] movedObjects;
+	// Distance each object was moved, or null if every object was moved by
+	// offsetX and offsetY.
+	public double[] deltaX;
+	public double[] deltaY;
+	public double offsetX;
+	public double offsetY;
+	public ArrayList<EditorEvent> events;
 	
-	public EditorEvent(EventType type, ArrayList<Pair<GameObject, Integer>> placedObjects, ArrayList<Pair<GameObject, Integer>> deletedObjects, ArrayList<Pair<GameObject, Pair<Point, Point>>> movedObjects) {
+	public EditorEvent(EventType type, ArrayList<Pair<GameObject, Integer>> placedObjects, ArrayList<Pair<GameObject, Integer>> deletedObjects) {
 		this.type = type;
 		if (type == EventType.DELETE) {
 			this.deletedObjects = deletedObjects;
 		} else if (type == EventType.PLACE) {
 			this.placedObjects = placedObjects;
-		} else if (type == EventType.MOVE) {
-			this.movedObjects = movedObjects;
+		}
+	}
+	
+	/**
+	 * Creates a move event.
+	 * 
+	 * @param movedObjects
+	 * @param deltaX
+	 * @param deltaY
+	 */
+	public EditorEvent(GameObject[] movedObjects, double[] deltaX, double[] deltaY) {
+		this.type = EventType.MOVE;
+		this.movedObjects = movedObjects;
+		setDeltas(deltaX, deltaY);
+	}
+	
+	/**
+	 * Creates a compound event of the given events, in the order they
+	 * happened.
+	 * 
+	 * @param events
+	 */
+	public EditorEvent(ArrayList<EditorEvent> events) {
+		this.type = EventType.COMPOUND;
+		this.events = events;
+	}
+	
+	public double getDeltaX(int i) {
+		return deltaX == null ? offsetX : deltaX[i];
+	}
+	
+	public double getDeltaY(int i) {
+		return deltaY == null ? offsetY : deltaY[i];
+	}
+	
+	/**
+	 * Checks if this is a move of exactly the same objects as the given move.
+	 * 
+	 * @param e
+	 * @return
+	 */
+	public boolean isSameSelection(EditorEvent e) {
+		if (type != EventType.MOVE || e.type != EventType.MOVE || movedObjects.length != e.movedObjects.length) {
+			return false;
+		}
+		for (int i = 0; i < movedObjects.length; i++) {
+			if (movedObjects[i] != e.movedObjects[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds a following move of the same objects to this move, so that both
+	 * are undone at once.
+	 * 
+	 * @param e
+	 */
+	public void merge(EditorEvent e) {
+		if (deltaX == null && e.deltaX == null) {
+			offsetX += e.offsetX;
+			offsetY += e.offsetY;
+			return;
+		}
+		double[] dx = new double[movedObjects.length];
+		double[] dy = new double[movedObjects.length];
+		for (int i = 0; i < dx.length; i++) {
+			dx[i] = getDeltaX(i) + e.getDeltaX(i);
+			dy[i] = getDeltaY(i) + e.getDeltaY(i);
+		}
+		setDeltas(dx, dy);
+	}
+	
+	/**
+	 * Returns about how many bytes of memory the event keeps alive.
+	 * 
+	 * @return
+	 */
+	public long estimateSize() {
+		if (type == EventType.MOVE) {
+			return EVENT_SIZE + (long) movedObjects.length * (REFERENCE_SIZE + (deltaX == null ? 0 : DELTA_SIZE));
+		} else if (type == EventType.COMPOUND) {
+			long size = EVENT_SIZE;
+			for (int i = 0; i < events.size(); i++) {
+				size += events.get(i).estimateSize();
+			}
+			return size;
+		} else if (type == EventType.DELETE) {
+			// Deleted objects are only kept alive by the history.
+			return EVENT_SIZE + (long) deletedObjects.size() * (PAIR_SIZE + OBJECT_SIZE);
+		}
+		return EVENT_SIZE + (long) placedObjects.size() * PAIR_SIZE;
+	}
+	
+	private void setDeltas(double[] dx, double[] dy) {
+		boolean shared = true;
+		for (int i = 1; i < dx.length && shared; i++) {
+			shared = dx[i] == dx[0] && dy[i] == dy[0];
+		}
+		if (shared) {
+			offsetX = dx.length > 0 ? dx[0] : 0;
+			offsetY = dy.length > 0 ? dy[0] : 0;
+			deltaX = null;
+			deltaY = null;
+		} else {
+			deltaX = dx;
+			deltaY = dy;
 		}
 	}
 }
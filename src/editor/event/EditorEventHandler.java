@@ -1,9 +1,13 @@
 package editor.event;
 
-import java.awt.Point;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 import editor.entities.GameObject;
+import editor.entities.Layer;
 import editor.entities.Pair;
 
 /**
@@ -11,17 +15,128 @@ import editor.entities.Pair;
  * to record events and can then use the undo and redo methods to undo or redo
  * the events.
  * 
+ * The history is kept within a memory budget. When it grows past the budget
+ * the oldest events are forgotten. Moves of the same selection that follow
+ * each other are merged into a single event.
+ * 
  * @author Jesper Bergstrom
  * @name EditorEventHandler.java
  * @version 0.00.00
  */
 public class EditorEventHandler {
 
+	public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+	
 	private ArrayList<EditorEvent> events;
 	private int index = -1;
+	private long memoryBudget;
+	private long memoryUsage = 0;
+	// Events of the open transaction, or null if there is none.
+	private ArrayList<EditorEvent> transaction;
+	private ArrayList<EditorEventListener> listeners;
+	// Counts every edit, undo and redo, so it can be told whether the level
+	// has changed since a given time.
+	private long editCount = 0;
 	
 	public EditorEventHandler() {
+		this(DEFAULT_MEMORY_BUDGET);
+	}
+	
+	/**
+	 * Creates an event handler that keeps about the given number of bytes of
+	 * history.
+	 * 
+	 * @param memoryBudget
+	 */
+	public EditorEventHandler(long memoryBudget) {
 		events = new ArrayList<EditorEvent>();
+		listeners = new ArrayList<EditorEventListener>();
+		this.memoryBudget = memoryBudget;
+	}
+	
+	/**
+	 * Returns the number of events that have been added, undone or redone.
+	 * The level has not changed as long as the count stays the same.
+	 * 
+	 * @return
+	 */
+	public long getEditCount() {
+		return editCount;
+	}
+	
+	public void addListener(EditorEventListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(EditorEventListener listener) {
+		listeners.remove(listener);
+	}
+	
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		evict();
+	}
+	
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	/**
+	 * Returns about how many bytes of memory the history keeps alive.
+	 * 
+	 * @return
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+	
+	/**
+	 * Forgets every event, including the events of an open transaction.
+	 */
+	public void clear() {
+		events.clear();
+		index = -1;
+		memoryUsage = 0;
+		if (transaction != null) {
+			transaction.clear();
+		}
+	}
+	
+	/**
+	 * Returns every object that the history refers to, including the objects
+	 * of an open transaction.
+	 * 
+	 * @return
+	 */
+	public Set<GameObject> getObjects() {
+		Set<GameObject> objects = Collections.newSetFromMap(new IdentityHashMap<GameObject, Boolean>());
+		for (int i = 0; i < events.size(); i++) {
+			addObjects(events.get(i), objects);
+		}
+		if (transaction != null) {
+			for (int i = 0; i < transaction.size(); i++) {
+				addObjects(transaction.get(i), objects);
+			}
+		}
+		return objects;
+	}
+	
+	private void addObjects(EditorEvent e, Set<GameObject> objects) {
+		if (e.type == EventType.PLACE) {
+			for (int i = 0; i < e.placedObjects.size(); i++) {
+				objects.add(e.placedObjects.get(i).one);
+			}
+		} else if (e.type == EventType.DELETE) {
+			for (int i = 0; i < e.deletedObjects.size(); i++) {
+				objects.add(e.deletedObjects.get(i).one);
+			}
+		} else if (e.type == EventType.MOVE) {
+			objects.addAll(Arrays.asList(e.movedObjects));
+		} else if (e.type == EventType.COMPOUND) {
+			for (int i = 0; i < e.events.size(); i++) {
+				addObjects(e.events.get(i), objects);
+			}
+		}
 	}
 	
 	/**
@@ -29,16 +144,16 @@ public class EditorEventHandler {
 	 * 
 	 * @param levelMap
 	 */
-	public void undo(ArrayList<ArrayList<GameObject>> levelMap) {
+	public void undo(ArrayList<Layer> levelMap) {
+		commitTransaction();
 		if (index > -1) {
-			if (events.get(index).type == EventType.PLACE) {
-				undoPlace(levelMap);
-			} else if (events.get(index).type == EventType.DELETE) {
-				undoDelete(levelMap);
-			} else if (events.get(index).type == EventType.MOVE) {
-				undoMove(levelMap);
-			}
+			EditorEvent e = events.get(index);
+			undo(levelMap, e);
 			index--;
+			editCount++;
+			for (int i = 0; i < listeners.size(); i++) {
+				listeners.get(i).eventUndone(e);
+			}
 		}
 	}
 	
@@ -47,32 +162,106 @@ public class EditorEventHandler {
 	 * 
 	 * @param levelMap
 	 */
-	public void redo(ArrayList<ArrayList<GameObject>> levelMap) {
+	public void redo(ArrayList<Layer> levelMap) {
+		commitTransaction();
 		if (index < events.size() - 1) {
 			index++;
-			if (events.get(index).type == EventType.PLACE) {
-				redoPlace(levelMap);
-			} else if (events.get(index).type == EventType.DELETE) {
-				redoDelete(levelMap);
-			} else if (events.get(index).type == EventType.MOVE) {
-				redoMove(levelMap);
+			redo(levelMap, events.get(index));
+			fireDone(events.get(index));
+		}
+	}
+	
+	/**
+	 * Starts collecting events into a transaction. Every event that is added
+	 * until the transaction is committed becomes part of a single event that
+	 * is undone and redone as a whole.
+	 */
+	public void beginTransaction() {
+		if (transaction == null) {
+			transaction = new ArrayList<EditorEvent>();
+		}
+	}
+	
+	/**
+	 * Ends the current transaction and adds its events to the history as one
+	 * event. Places and deletes that follow each other are joined, so a
+	 * transaction of many places becomes one place event.
+	 */
+	public void commitTransaction() {
+		if (transaction == null) {
+			return;
+		}
+		ArrayList<EditorEvent> collected = transaction;
+		transaction = null;
+		ArrayList<EditorEvent> joined = new ArrayList<EditorEvent>();
+		for (int i = 0; i < collected.size(); i++) {
+			EditorEvent e = collected.get(i);
+			EditorEvent last = joined.isEmpty() ? null : joined.get(joined.size() - 1);
+			if (last != null && last.type == EventType.PLACE && e.type == EventType.PLACE) {
+				last.placedObjects.addAll(e.placedObjects);
+			} else if (last != null && last.type == EventType.DELETE && e.type == EventType.DELETE) {
+				last.deletedObjects.addAll(e.deletedObjects);
+			} else if (last != null && last.isSameSelection(e)) {
+				last.merge(e);
+			} else {
+				joined.add(e);
+			}
+		}
+		if (joined.size() == 1) {
+			addEvent(joined.get(0));
+		} else if (joined.size() > 1) {
+			addEvent(new EditorEvent(joined));
+		}
+	}
+	
+	public boolean isInTransaction() {
+		return transaction != null;
+	}
+	
+	private void undo(ArrayList<Layer> levelMap, EditorEvent e) {
+		if (e.type == EventType.PLACE) {
+			removeAll(levelMap, e.placedObjects);
+		} else if (e.type == EventType.DELETE) {
+			addAll(levelMap, e.deletedObjects);
+		} else if (e.type == EventType.MOVE) {
+			undoMove(levelMap, e);
+		} else if (e.type == EventType.COMPOUND) {
+			for (int i = e.events.size() - 1; i >= 0; i--) {
+				undo(levelMap, e.events.get(i));
+			}
+		}
+	}
+	
+	private void redo(ArrayList<Layer> levelMap, EditorEvent e) {
+		if (e.type == EventType.PLACE) {
+			addAll(levelMap, e.placedObjects);
+		} else if (e.type == EventType.DELETE) {
+			removeAll(levelMap, e.deletedObjects);
+		} else if (e.type == EventType.MOVE) {
+			redoMove(levelMap, e);
+		} else if (e.type == EventType.COMPOUND) {
+			for (int i = 0; i < e.events.size(); i++) {
+				redo(levelMap, e.events.get(i));
 			}
 		}
 	}
 	
 	/**
 	 * Adds a move type event to the event list. All events that happened after the current
-	 * event index will be deleted when a new event is added.
+	 * event index will be deleted when a new event is added. If the previous event moved
+	 * the same objects the two events are merged.
 	 * 
 	 * @param movedObjects
+	 * @param deltaX how far each object was moved along the x axis
+	 * @param deltaY how far each object was moved along the y axis
 	 */
-	public void addMoveEvent(ArrayList<Pair<GameObject, Pair<Point, Point>>> movedObjects) {
-		EditorEvent e = new EditorEvent(EventType.MOVE, null, null, movedObjects);
-		for (int i = events.size() - 1; i > index; i--) {
-			events.remove(i);
+	public void addMoveEvent(GameObject[] movedObjects, double[] deltaX, double[] deltaY) {
+		EditorEvent e = new EditorEvent(movedObjects, deltaX, deltaY);
+		if (e.deltaX == null && e.offsetX == 0 && e.offsetY == 0) {
+			return;
 		}
-		events.add(e);
-		index = events.size() - 1;
+		fireDone(e);
+		addEvent(e);
 	}
 	
 	/**
@@ -82,12 +271,9 @@ public class EditorEventHandler {
 	 * @param placeObjects
 	 */
 	public void addPlaceEvent(ArrayList<Pair<GameObject, Integer>> placeObjects) {
-		EditorEvent e = new EditorEvent(EventType.PLACE, placeObjects, null, null);
-		for (int i = events.size() - 1; i > index; i--) {
-			events.remove(i);
-		}
-		events.add(e);
-		index = events.size() - 1;
+		EditorEvent e = new EditorEvent(EventType.PLACE, placeObjects, null);
+		fireDone(e);
+		addEvent(e);
 	}
 	
 	/**
@@ -97,63 +283,117 @@ public class EditorEventHandler {
 	 * @param deleteObjects
 	 */
 	public void addDeleteEvent(ArrayList<Pair<GameObject, Integer>> deleteObjects) {
-		EditorEvent e = new EditorEvent(EventType.DELETE, null, deleteObjects, null);
+		EditorEvent e = new EditorEvent(EventType.DELETE, null, deleteObjects);
+		fireDone(e);
+		addEvent(e);
+	}
+	
+	/**
+	 * Tells the listeners about an event before it is added, since adding it
+	 * can merge it into the previous event or into a transaction.
+	 */
+	private void fireDone(EditorEvent e) {
+		editCount++;
+		for (int i = 0; i < listeners.size(); i++) {
+			listeners.get(i).eventDone(e);
+		}
+	}
+	
+	private void addEvent(EditorEvent e) {
+		if (transaction != null) {
+			transaction.add(e);
+			return;
+		}
 		for (int i = events.size() - 1; i > index; i--) {
-			events.remove(i);
+			memoryUsage -= events.remove(i).estimateSize();
 		}
-		events.add(e);
-		index = events.size() - 1;
+		if (index > -1 && events.get(index).isSameSelection(e)) {
+			EditorEvent previous = events.get(index);
+			memoryUsage -= previous.estimateSize();
+			previous.merge(e);
+			memoryUsage += previous.estimateSize();
+		} else {
+			events.add(e);
+			index = events.size() - 1;
+			memoryUsage += e.estimateSize();
+		}
+		evict();
 	}
 	
-	private void undoMove(ArrayList<ArrayList<GameObject>> levelMap) {
-		EditorEvent e = events.get(index);
-		for (int i = 0; i < e.movedObjects.size(); i++) {
-			GameObject o = e.movedObjects.get(i).one;
-			Point p = e.movedObjects.get(i).two.one;
-			o.x = p.x;
-			o.y = p.y;
+	/**
+	 * Forgets the oldest events until the history fits in the memory budget.
+	 * The current event and the events that can be redone are always kept.
+	 */
+	private void evict() {
+		int count = 0;
+		while (memoryUsage > memoryBudget && count < index) {
+			memoryUsage -= events.get(count).estimateSize();
+			count++;
+		}
+		if (count > 0) {
+			events.subList(0, count).clear();
+			index -= count;
 		}
 	}
 	
-	private void undoDelete(ArrayList<ArrayList<GameObject>> levelMap) {
-		EditorEvent e = events.get(index);
-		for (int i = 0; i < e.deletedObjects.size(); i++) {
-			GameObject o = e.deletedObjects.get(i).one;
-			int layerIndex = e.deletedObjects.get(i).two;
-			levelMap.get(layerIndex).add(o);
+	private void undoMove(ArrayList<Layer> levelMap, EditorEvent e) {
+		for (int i = 0; i < e.movedObjects.length; i++) {
+			GameObject o = e.movedObjects[i];
+			moveObject(levelMap, o, o.getX() - e.getDeltaX(i), o.getY() - e.getDeltaY(i));
 		}
 	}
 	
-	private void undoPlace(ArrayList<ArrayList<GameObject>> levelMap) {
-		EditorEvent e = events.get(index);
-		for (int i = 0; i < e.placedObjects.size(); i++) {
-			levelMap.get(e.placedObjects.get(i).two).remove(e.placedObjects.get(i).one);
+	private void redoMove(ArrayList<Layer> levelMap, EditorEvent e) {
+		for (int i = 0; i < e.movedObjects.length; i++) {
+			GameObject o = e.movedObjects[i];
+			moveObject(levelMap, o, o.getX() + e.getDeltaX(i), o.getY() + e.getDeltaY(i));
 		}
 	}
 	
-	private void redoPlace(ArrayList<ArrayList<GameObject>> levelMap) {
-		EditorEvent e = events.get(index);
-		for (int i = 0; i < e.placedObjects.size(); i++) {
-			levelMap.get(e.placedObjects.get(i).two).add(e.placedObjects.get(i).one);
+	/**
+	 * Adds the objects to their layers, sorting them by layer first so each
+	 * layer gets all of its objects at once.
+	 * 
+	 * @param levelMap
+	 * @param objects
+	 */
+	private void addAll(ArrayList<Layer> levelMap, ArrayList<Pair<GameObject, Integer>> objects) {
+		ArrayList<ArrayList<GameObject>> byLayer = groupByLayer(levelMap, objects);
+		for (int i = 0; i < byLayer.size(); i++) {
+			if (!byLayer.get(i).isEmpty()) {
+				levelMap.get(i).addAll(byLayer.get(i));
+			}
 		}
 	}
 	
-	private void redoDelete(ArrayList<ArrayList<GameObject>> levelMap) {
-		EditorEvent e = events.get(index);
-		for (int i = 0; i < e.deletedObjects.size(); i++) {
-			GameObject o = e.deletedObjects.get(i).one;
-			int layerIndex = e.deletedObjects.get(i).two;
-			levelMap.get(layerIndex).remove(o);
+	private void removeAll(ArrayList<Layer> levelMap, ArrayList<Pair<GameObject, Integer>> objects) {
+		ArrayList<ArrayList<GameObject>> byLayer = groupByLayer(levelMap, objects);
+		for (int i = 0; i < byLayer.size(); i++) {
+			if (!byLayer.get(i).isEmpty()) {
+				levelMap.get(i).removeAll(byLayer.get(i));
+			}
+		}
+	}
+	
+	private ArrayList<ArrayList<GameObject>> groupByLayer(ArrayList<Layer> levelMap,
+			ArrayList<Pair<GameObject, Integer>> objects) {
+		ArrayList<ArrayList<GameObject>> byLayer = new ArrayList<ArrayList<GameObject>>(levelMap.size());
+		for (int i = 0; i < levelMap.size(); i++) {
+			byLayer.add(new ArrayList<GameObject>());
+		}
+		for (int i = 0; i < objects.size(); i++) {
+			byLayer.get(objects.get(i).two).add(objects.get(i).one);
 		}
+		return byLayer;
 	}
 	
-	private void redoMove(ArrayList<ArrayList<GameObject>> levelMap) {
-		EditorEvent e = events.get(index);
-		for (int i = 0; i < e.movedObjects.size(); i++) {
-			GameObject o = e.movedObjects.get(i).one;
-			Point p = e.movedObjects.get(i).two.two;
-			o.x = p.x;
-			o.y = p.y;
+	private void moveObject(ArrayList<Layer> levelMap, GameObject o, double x, double y) {
+		Layer layer = Layer.layerOf(levelMap, o);
+		if (layer != null) {
+			layer.move(o, x, y);
+		} else {
+			o.setX((float) x);
+			o.setY((float) y);
 		}
 	}
 }
@@ -0,0 +1,23 @@
+package editor.event;
+
+/**
+ * Gets notified of the edits that are recorded or replayed by an
+ * EditorEventHandler. The edit has already been made to the level when the
+ * listener is called.
+ *
+ * @author Jesper Bergstrom
+ * @name EditorEventListener.java
+ * @version 0.00.00
+ */
+public interface EditorEventListener {
+
+	/**
+	 * Called when an event is added or redone.
+	 */
+	void eventDone(EditorEvent e);
+
+	/**
+	 * Called when an event is undone.
+	 */
+	void eventUndone(EditorEvent e);
+}
@@ -1,5 +1,5 @@
 package editor.event;
 
 public enum EventType {
-	DELETE, PLACE, MOVE
+	DELETE, PLACE, MOVE, COMPOUND
 }
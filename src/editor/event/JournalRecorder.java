@@ -0,0 +1,96 @@
+package editor.event;
+
+import java.util.ArrayList;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.Pair;
+import io.LevelJournal;
+
+/**
+ * Records the edits of an EditorEventHandler in the journal of the level
+ * file, so saving only has to append them to the journal. Undoing an event
+ * is recorded as the opposite edits.
+ *
+ * @author Jesper Bergstrom
+ * @name JournalRecorder.java
+ * @version 0.00.00
+ */
+public class JournalRecorder implements EditorEventListener {
+
+	private ArrayList<Layer> levelMap;
+	private LevelJournal journal;
+	// Set when edits are made while there is no journal, which means that
+	// the journal does not hold every edit since the level was saved whole.
+	private boolean missedEdits = false;
+
+	public JournalRecorder(ArrayList<Layer> levelMap) {
+		this.levelMap = levelMap;
+	}
+
+	public LevelJournal getJournal() {
+		return journal;
+	}
+
+	public void setJournal(LevelJournal journal) {
+		this.journal = journal;
+		missedEdits = false;
+	}
+
+	/**
+	 * Returns true if edits have been made that are not in the journal.
+	 *
+	 * @return
+	 */
+	public boolean hasMissedEdits() {
+		return missedEdits;
+	}
+
+	@Override
+	public void eventDone(EditorEvent e) {
+		record(e, false);
+	}
+
+	@Override
+	public void eventUndone(EditorEvent e) {
+		record(e, true);
+	}
+
+	private void record(EditorEvent e, boolean undone) {
+		if (journal == null) {
+			missedEdits = true;
+			return;
+		}
+		if (e.type == EventType.PLACE) {
+			record(e.placedObjects, !undone);
+		} else if (e.type == EventType.DELETE) {
+			record(e.deletedObjects, undone);
+		} else if (e.type == EventType.MOVE) {
+			// The objects have already been moved, so they were one delta
+			// away, or the other way when the move was undone.
+			double sign = undone ? -1 : 1;
+			for (int i = 0; i < e.movedObjects.length; i++) {
+				GameObject o = e.movedObjects[i];
+				int layer = levelMap.indexOf(Layer.layerOf(levelMap, o));
+				if (layer >= 0) {
+					journal.move(layer, o, (float) (o.getX() - sign * e.getDeltaX(i)),
+							(float) (o.getY() - sign * e.getDeltaY(i)));
+				}
+			}
+		} else if (e.type == EventType.COMPOUND) {
+			for (int i = 0; i < e.events.size(); i++) {
+				record(e.events.get(undone ? e.events.size() - 1 - i : i), undone);
+			}
+		}
+	}
+
+	private void record(ArrayList<Pair<GameObject, Integer>> objects, boolean added) {
+		for (int i = 0; i < objects.size(); i++) {
+			if (added) {
+				journal.add(objects.get(i).two, objects.get(i).one);
+			} else {
+				journal.remove(objects.get(i).two, objects.get(i).one);
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package editor.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import editor.event.EditorEventHandler;
+import io.Level;
+import io.LevelFileManager;
+import io.LevelSnapshot;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.util.Duration;
+
+/**
+ * Saves a copy of the level every once in a while without blocking the
+ * JavaFX thread. Only a snapshot of the level is taken on the JavaFX thread,
+ * and the snapshot is written on a background thread.
+ *
+ * The copies are written next to the level file, or to the autosave folder
+ * if the level has not been saved yet. The newest copy is
+ * name.autosave1, the one before it name.autosave2 and so on. Nothing is
+ * saved if the level has not been edited since the last copy.
+ *
+ * @author Jesper Bergstrom
+ * @name AutosaveService.java
+ * @version 0.00.00
+ */
+public class AutosaveService {
+
+	public static final Duration DEFAULT_INTERVAL = Duration.minutes(1);
+	public static final int DEFAULT_SNAPSHOT_COUNT = 3;
+	public static final String AUTOSAVE_PATH = "./autosave/untitled.lvl";
+
+	private LevelFileManager levelFileManager;
+	private EditorEventHandler eventHandler;
+	private Supplier<Level> level;
+	private Supplier<File> file;
+	private ExecutorService executor;
+	private Timeline timeline;
+	private int snapshotCount = DEFAULT_SNAPSHOT_COUNT;
+	// Edit count of the level when the last copy was taken.
+	private long savedEditCount;
+	private Future<?> writing;
+
+	/**
+	 * Creates an autosave service for a level.
+	 *
+	 * @param levelFileManager
+	 * @param eventHandler the edit history of the level
+	 * @param level returns the level, or null if it can not be saved
+	 * @param file returns the file of the level, or null if it has none
+	 */
+	public AutosaveService(LevelFileManager levelFileManager, EditorEventHandler eventHandler, Supplier<Level> level,
+			Supplier<File> file) {
+		this.levelFileManager = levelFileManager;
+		this.eventHandler = eventHandler;
+		this.level = level;
+		this.file = file;
+		savedEditCount = eventHandler.getEditCount();
+		executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Autosave");
+			t.setDaemon(true);
+			return t;
+		});
+		timeline = new Timeline();
+		timeline.setCycleCount(Animation.INDEFINITE);
+		setInterval(DEFAULT_INTERVAL);
+	}
+
+	public void start() {
+		timeline.play();
+	}
+
+	/**
+	 * Stops saving. A copy that is being written is still finished.
+	 */
+	public void stop() {
+		timeline.stop();
+		executor.shutdown();
+	}
+
+	public void setInterval(Duration interval) {
+		boolean running = timeline.getStatus() == Animation.Status.RUNNING;
+		timeline.stop();
+		timeline.getKeyFrames().setAll(new KeyFrame(interval, e -> autosave()));
+		if (running) {
+			timeline.play();
+		}
+	}
+
+	/**
+	 * Sets how many copies are kept.
+	 *
+	 * @param snapshotCount
+	 */
+	public void setSnapshotCount(int snapshotCount) {
+		this.snapshotCount = Math.max(1, snapshotCount);
+	}
+
+	/**
+	 * Takes a snapshot of the level and starts writing it, unless the level
+	 * has not changed or the previous copy is still being written. Must be
+	 * called on the JavaFX thread.
+	 */
+	public void autosave() {
+		long editCount = eventHandler.getEditCount();
+		if (editCount == savedEditCount || (writing != null && !writing.isDone())) {
+			return;
+		}
+		Level current = level.get();
+		if (current == null) {
+			return;
+		}
+		File levelFile = file.get();
+		File base = levelFile != null ? levelFile : new File(AUTOSAVE_PATH);
+		LevelSnapshot snapshot = LevelSnapshot.of(current);
+		int count = snapshotCount;
+		savedEditCount = editCount;
+		writing = executor.submit(() -> {
+			try {
+				write(snapshot, base, count);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Writes the snapshot as the newest copy and renames the older copies,
+	 * dropping the oldest one.
+	 */
+	private void write(LevelSnapshot snapshot, File base, int count) throws IOException {
+		File parent = base.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		File newest = new File(base.getPath() + ".autosave");
+		levelFileManager.writeFile(snapshot, newest.getPath());
+		if (!newest.exists()) {
+			return;
+		}
+		Files.deleteIfExists(getSnapshotFile(base, count).toPath());
+		for (int i = count - 1; i >= 1; i--) {
+			File older = getSnapshotFile(base, i);
+			if (older.exists()) {
+				Files.move(older.toPath(), getSnapshotFile(base, i + 1).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Files.move(newest.toPath(), getSnapshotFile(base, 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Returns the file of a copy of a level, where 1 is the newest copy.
+	 *
+	 * @param file
+	 * @param i
+	 * @return
+	 */
+	public static File getSnapshotFile(File file, int i) {
+		return new File(file.getPath() + ".autosave" + i);
+	}
+}
@@ -0,0 +1,257 @@
+package editor.ui;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.LayerListener;
+import editor.entities.SpriteRegistry;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * Caches the layers of a level as images. Each layer is split into square
+ * chunks that are rendered once at the current zoom and then drawn as a
+ * single image every frame. A chunk is only rendered again when an object
+ * inside it is placed, moved or deleted, or when the zoom changes.
+ *
+ * Objects whose sprite has not been loaded yet are drawn as a placeholder.
+ * The chunks that contain placeholders are remembered so they can be
+ * rendered again once the sprites are loaded.
+ *
+ * @author Jesper Bergstrom
+ * @name ChunkCache.java
+ * @version 0.00.00
+ */
+public class ChunkCache implements LayerListener {
+
+	// Size of a chunk in pixels on the screen.
+	public static final int CHUNK_SIZE = 512;
+	// Limits for how many chunks, and how many chunk images, are kept.
+	private static final int MAX_CHUNKS = 4096;
+	private static final int MAX_IMAGES = 192;
+	private static final int MAX_FREE_IMAGES = 16;
+	private static final Color PLACEHOLDER_COLOR = Color.rgb(128, 128, 128, 0.5);
+
+	private ArrayList<Layer> levelMap;
+	private SpriteRegistry sprites;
+	private LinkedHashMap<Long, WritableImage> chunks;
+	private HashSet<Long> placeholderChunks;
+	private boolean renderedPlaceholder;
+	private ArrayList<WritableImage> freeImages;
+	private int imageCount = 0;
+	private Canvas canvas;
+	private SnapshotParameters snapshotParameters;
+	private double scale = 0;
+	private double chunkSize = 0;
+
+	public ChunkCache(ArrayList<Layer> levelMap) {
+		this.levelMap = levelMap;
+		sprites = SpriteRegistry.getInstance();
+		chunks = new LinkedHashMap<Long, WritableImage>(64, 0.75f, true);
+		freeImages = new ArrayList<WritableImage>();
+		placeholderChunks = new HashSet<Long>();
+		canvas = new Canvas(CHUNK_SIZE, CHUNK_SIZE);
+		snapshotParameters = new SnapshotParameters();
+		snapshotParameters.setFill(Color.TRANSPARENT);
+		for (int i = 0; i < levelMap.size(); i++) {
+			levelMap.get(i).addListener(this);
+		}
+	}
+
+	/**
+	 * Stops listening to the layers and drops every cached chunk.
+	 */
+	public void dispose() {
+		for (int i = 0; i < levelMap.size(); i++) {
+			levelMap.get(i).removeListener(this);
+		}
+		invalidateAll();
+	}
+
+	/**
+	 * Draws the chunks of a layer that are inside the given region. The
+	 * graphics context must not be scaled, and the region is given in pixels.
+	 *
+	 * @param g
+	 * @param layerIndex
+	 * @param scale
+	 * @param viewportX
+	 * @param viewportY
+	 * @param region
+	 */
+	public void draw(GraphicsContext g, int layerIndex, double scale, double viewportX, double viewportY,
+			Rectangle2D region) {
+		setScale(scale);
+		int minX = (int) Math.floor((region.getMinX() / scale - viewportX) / chunkSize);
+		int minY = (int) Math.floor((region.getMinY() / scale - viewportY) / chunkSize);
+		int maxX = (int) Math.floor((region.getMaxX() / scale - viewportX) / chunkSize);
+		int maxY = (int) Math.floor((region.getMaxY() / scale - viewportY) / chunkSize);
+		for (int cx = minX; cx <= maxX; cx++) {
+			for (int cy = minY; cy <= maxY; cy++) {
+				WritableImage img = getChunk(layerIndex, cx, cy);
+				if (img != null) {
+					// Round to whole pixels so there are no seams between chunks.
+					double x0 = Math.round((cx * chunkSize + viewportX) * scale);
+					double y0 = Math.round((cy * chunkSize + viewportY) * scale);
+					double x1 = Math.round(((cx + 1) * chunkSize + viewportX) * scale);
+					double y1 = Math.round(((cy + 1) * chunkSize + viewportY) * scale);
+					g.drawImage(img, x0, y0, x1 - x0, y1 - y0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops every cached chunk, for example when the sprite images change.
+	 */
+	public void invalidateAll() {
+		for (WritableImage img : chunks.values()) {
+			release(img);
+		}
+		chunks.clear();
+		placeholderChunks.clear();
+	}
+
+	/**
+	 * Drops the chunks that were rendered with placeholders, so that they are
+	 * rendered again with the sprites that have been loaded since.
+	 */
+	public void invalidatePlaceholders() {
+		for (Long key : placeholderChunks) {
+			if (chunks.containsKey(key)) {
+				release(chunks.remove(key));
+			}
+		}
+		placeholderChunks.clear();
+	}
+
+	@Override
+	public void objectAdded(Layer layer, GameObject o) {
+		invalidate(layer, o);
+	}
+
+	@Override
+	public void objectRemoved(Layer layer, GameObject o) {
+		invalidate(layer, o);
+	}
+
+	private void invalidate(Layer layer, GameObject o) {
+		if (chunks.isEmpty()) {
+			return;
+		}
+		int layerIndex = levelMap.indexOf(layer);
+		int minX = (int) Math.floor(o.getX() / chunkSize);
+		int minY = (int) Math.floor(o.getY() / chunkSize);
+		int maxX = (int) Math.floor((o.getX() + o.getWidth()) / chunkSize);
+		int maxY = (int) Math.floor((o.getY() + o.getHeight()) / chunkSize);
+		for (int cx = minX; cx <= maxX; cx++) {
+			for (int cy = minY; cy <= maxY; cy++) {
+				Long key = key(layerIndex, cx, cy);
+				if (chunks.containsKey(key)) {
+					release(chunks.remove(key));
+				}
+			}
+		}
+	}
+
+	private void setScale(double scale) {
+		if (scale != this.scale) {
+			invalidateAll();
+			this.scale = scale;
+			this.chunkSize = CHUNK_SIZE / scale;
+		}
+	}
+
+	private WritableImage getChunk(int layerIndex, int cx, int cy) {
+		Long key = key(layerIndex, cx, cy);
+		if (chunks.containsKey(key)) {
+			return chunks.get(key);
+		}
+		renderedPlaceholder = false;
+		WritableImage img = render(layerIndex, cx, cy);
+		chunks.put(key, img);
+		if (renderedPlaceholder) {
+			placeholderChunks.add(key);
+		}
+		if (img != null) {
+			imageCount++;
+		}
+		evict();
+		return img;
+	}
+
+	/**
+	 * Renders one chunk of a layer. Returns null if there are no objects in
+	 * the chunk.
+	 */
+	private WritableImage render(int layerIndex, int cx, int cy) {
+		double x = cx * chunkSize;
+		double y = cy * chunkSize;
+		GraphicsContext g = canvas.getGraphicsContext2D();
+		g.clearRect(0, 0, CHUNK_SIZE, CHUNK_SIZE);
+		g.save();
+		g.scale(scale, scale);
+		g.translate(-x, -y);
+		// The objects are drawn straight from the columns of the layer.
+		int count = levelMap.get(layerIndex).forEachInDrawOrder(x, y, chunkSize, chunkSize,
+				(ox, oy, width, height, objectScale, spriteId) -> {
+					if (spriteId < 0) {
+						return;
+					}
+					Image img = sprites.getImage(spriteId);
+					if (img == null) {
+						if (!sprites.get(spriteId).isLoaded()) {
+							g.setFill(PLACEHOLDER_COLOR);
+							g.fillRect(ox, oy, width, height);
+							renderedPlaceholder = true;
+						}
+						return;
+					}
+					g.scale(objectScale, objectScale);
+					g.drawImage(img, ox / objectScale, oy / objectScale);
+					g.scale(1 / objectScale, 1 / objectScale);
+				});
+		g.restore();
+		if (count == 0) {
+			return null;
+		}
+
+		WritableImage reuse = null;
+		if (!freeImages.isEmpty()) {
+			reuse = freeImages.remove(freeImages.size() - 1);
+		}
+		return canvas.snapshot(snapshotParameters, reuse);
+	}
+
+	private void evict() {
+		Iterator<WritableImage> it = chunks.values().iterator();
+		while (it.hasNext() && (chunks.size() > MAX_CHUNKS || imageCount > MAX_IMAGES)) {
+			WritableImage img = it.next();
+			it.remove();
+			release(img);
+		}
+	}
+
+	private void release(WritableImage img) {
+		if (img == null) {
+			return;
+		}
+		imageCount--;
+		if (freeImages.size() < MAX_FREE_IMAGES) {
+			freeImages.add(img);
+		}
+	}
+
+	private static Long key(int layerIndex, int cx, int cy) {
+		return ((long) layerIndex << 56) | (((long) cx & 0xFFFFFFFL) << 28) | ((long) cy & 0xFFFFFFFL);
+	}
+}
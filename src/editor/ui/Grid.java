@@ -0,0 +1,108 @@
+package editor.ui;
+
+import java.awt.Point;
+
+import javafx.scene.canvas.GraphicsContext;
+
+/**
+ * The tile grid of a level. The grid points are never stored, they are
+ * calculated from the tile size and the number of columns and rows of the
+ * level, so snapping to the grid and drawing it costs the same no matter how
+ * big the level is.
+ *
+ * @author Jesper Bergstrom
+ * @name Grid.java
+ * @version 0.00.00
+ */
+public class Grid {
+
+	private int tileSize;
+	private int columns;
+	private int rows;
+
+	public Grid(int tileSize, int width, int height) {
+		this.tileSize = tileSize;
+		this.columns = width / tileSize;
+		this.rows = height / tileSize;
+	}
+
+	/**
+	 * Finds the grid point closest to the given position in level coordinates.
+	 * Positions outside of the level snap to the closest point on its border.
+	 *
+	 * @param x
+	 * @param y
+	 * @return the closest grid point.
+	 */
+	public Point findClosestPoint(double x, double y) {
+		return new Point(closest(x, columns), closest(y, rows));
+	}
+
+	/**
+	 * Draws the grid lines that are inside the visible part of the level. The
+	 * graphics context is expected to already be scaled, and the view width and
+	 * height are given in level coordinates.
+	 *
+	 * @param g
+	 * @param viewportX
+	 * @param viewportY
+	 * @param viewWidth
+	 * @param viewHeight
+	 */
+	public void draw(GraphicsContext g, double viewportX, double viewportY, double viewWidth, double viewHeight) {
+		if (columns <= 0 || rows <= 0) {
+			return;
+		}
+		double left = Math.max(0, -viewportX);
+		double top = Math.max(0, -viewportY);
+		double right = Math.min(columns * (double) tileSize, viewWidth - viewportX);
+		double bottom = Math.min(rows * (double) tileSize, viewHeight - viewportY);
+		if (left > right || top > bottom) {
+			return;
+		}
+
+		int firstColumn = (int) Math.ceil(left / tileSize);
+		int lastColumn = (int) Math.floor(right / tileSize);
+		for (int i = firstColumn; i <= lastColumn; i++) {
+			double x = i * (double) tileSize + viewportX;
+			g.strokeLine(x, top + viewportY, x, bottom + viewportY);
+		}
+
+		int firstRow = (int) Math.ceil(top / tileSize);
+		int lastRow = (int) Math.floor(bottom / tileSize);
+		for (int j = firstRow; j <= lastRow; j++) {
+			double y = j * (double) tileSize + viewportY;
+			g.strokeLine(left + viewportX, y, right + viewportX, y);
+		}
+	}
+
+	private int closest(double value, int count) {
+		if (count <= 0) {
+			return 0;
+		}
+		double i = Math.floor(value / tileSize);
+		// Only pick the next point if it is strictly closer, a position exactly
+		// between two points snaps to the lower one.
+		if (value - i * tileSize > (i + 1) * tileSize - value) {
+			i++;
+		}
+		if (i < 0) {
+			i = 0;
+		} else if (i > count - 1) {
+			i = count - 1;
+		}
+		return (int) i * tileSize;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+}
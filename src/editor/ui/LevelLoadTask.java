@@ -0,0 +1,61 @@
+package editor.ui;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+
+import io.LevelFileManager;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+/**
+ * Reads the objects of a level file on a background thread and adds them to
+ * a LevelPane in batches on the JavaFX thread, so the level can be viewed and
+ * panned around while the rest of it is still loading. The value of the task
+ * is the number of journal edits that did not match the level and were
+ * skipped.
+ * 
+ * @author Jesper Bergstrom
+ * @name LevelLoadTask.java
+ * @version 0.00.00
+ */
+public class LevelLoadTask extends Task<Integer> {
+
+	private static final int BATCH_SIZE = 10000;
+	// Batches that have been read but not yet added to the pane. Limits how far
+	// the reader can get ahead of the JavaFX thread.
+	private static final int MAX_PENDING_BATCHES = 4;
+
+	private LevelFileManager levelFileManager;
+	private File file;
+	private LevelPane levelPane;
+	private Semaphore pendingBatches;
+
+	public LevelLoadTask(LevelFileManager levelFileManager, File file, LevelPane levelPane) {
+		this.levelFileManager = levelFileManager;
+		this.file = file;
+		this.levelPane = levelPane;
+		pendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+	}
+
+	@Override
+	protected Integer call() throws Exception {
+		return levelFileManager.readObjects(file, BATCH_SIZE, (batch, read, total) -> {
+			try {
+				pendingBatches.acquire();
+			} catch (InterruptedException e) {
+				return false;
+			}
+			if (isCancelled()) {
+				return false;
+			}
+			Platform.runLater(() -> {
+				if (!isCancelled()) {
+					levelPane.addObjects(batch);
+				}
+				pendingBatches.release();
+			});
+			updateProgress(read, total);
+			return true;
+		});
+	}
+}
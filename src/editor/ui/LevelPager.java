@@ -0,0 +1,495 @@
+package editor.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.LayerListener;
+import io.LevelChunk;
+import io.LevelFileManager;
+import io.PagedLevelFile;
+import javafx.application.Platform;
+import javafx.geometry.Rectangle2D;
+
+/**
+ * Keeps only the part of a big level that is around the view in the layers,
+ * so levels that do not fit in memory can be edited. The level is read one
+ * chunk of the level file at a time as the view moves, and the chunks that
+ * have not been in view for the longest time are dropped again once more
+ * objects than the budget are loaded.
+ *
+ * Chunks are read on a background thread, so panning does not wait for the
+ * file. Objects that are placed, moved or deleted mark their chunk as
+ * changed. A changed chunk is kept until it has been written back to the level
+ * file, and chunks with objects that are pinned, such as the selection or
+ * objects in the edit history, are not dropped either.
+ *
+ * @author Jesper Bergstrom
+ * @name LevelPager.java
+ * @version 0.00.00
+ */
+public class LevelPager implements LayerListener {
+
+	// Levels with more objects than this are paged instead of loaded whole.
+	// New levels of this size are written chunked, so they can be paged.
+	public static final long PAGED_LEVEL_SIZE = LevelFileManager.CHUNKED_LEVEL_SIZE;
+	public static final long DEFAULT_MAX_RESIDENT_OBJECTS = 1000000;
+	// Chunks around the view that are loaded as well, so objects that reach
+	// into the view from a neighbouring chunk are drawn and panning does not
+	// have to wait for the file right away.
+	private static final int MARGIN = 1;
+	// Draw order of an object that has not been written to the file yet. The
+	// draw order in the file of each object is kept as its tag in the layer.
+	private static final int NEW = -1;
+
+	private LevelFileManager levelFileManager;
+	private PagedLevelFile file;
+	private ArrayList<Layer> levelMap;
+	private LinkedHashMap<Long, Page> pages;
+	private long residentObjects = 0;
+	private long maxResidentObjects;
+	private double chunkSize;
+	private Supplier<Collection<GameObject>> pinnedObjects;
+	private Consumer<Rectangle2D> onLoaded;
+	private ExecutorService reader;
+	// Chunks that are being read.
+	private HashSet<Long> pending = new HashSet<Long>();
+	private boolean disposed = false;
+	// Set while the pager itself adds or removes objects, so loading and
+	// dropping chunks does not count as an edit.
+	private boolean paging = false;
+	// Object that is being moved.
+	private GameObject moved;
+	// Chunks that were in view the last time the view was updated.
+	private int minX = 0;
+	private int minY = 0;
+	private int maxX = -1;
+	private int maxY = -1;
+
+	public LevelPager(LevelFileManager levelFileManager, PagedLevelFile file, ArrayList<Layer> levelMap) {
+		this(levelFileManager, file, levelMap, DEFAULT_MAX_RESIDENT_OBJECTS);
+	}
+
+	public LevelPager(LevelFileManager levelFileManager, PagedLevelFile file, ArrayList<Layer> levelMap,
+			long maxResidentObjects) {
+		this.levelFileManager = levelFileManager;
+		this.file = file;
+		this.levelMap = levelMap;
+		this.maxResidentObjects = maxResidentObjects;
+		chunkSize = file.getChunkSize();
+		pages = new LinkedHashMap<Long, Page>(64, 0.75f, true);
+		reader = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Level pager");
+			t.setDaemon(true);
+			return t;
+		});
+		for (int i = 0; i < levelMap.size(); i++) {
+			levelMap.get(i).addListener(this);
+		}
+	}
+
+	/**
+	 * Sets the objects whose chunks must stay loaded, since the editor still
+	 * refers to them.
+	 *
+	 * @param pinnedObjects
+	 */
+	public void setPinnedObjects(Supplier<Collection<GameObject>> pinnedObjects) {
+		this.pinnedObjects = pinnedObjects;
+	}
+
+	/**
+	 * Sets what to do when a chunk has been read. It is given the bounds of
+	 * the objects of the chunk in the level.
+	 *
+	 * @param onLoaded
+	 */
+	public void setOnLoaded(Consumer<Rectangle2D> onLoaded) {
+		this.onLoaded = onLoaded;
+	}
+
+	public long getResidentObjects() {
+		return residentObjects;
+	}
+
+	public boolean isModified() {
+		for (Page page : pages.values()) {
+			if (page.dirty) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts reading the chunks in and around the given rectangle of the level
+	 * and drops the chunks that have been out of view the longest if the
+	 * budget is exceeded. Nothing is done unless the rectangle covers other
+	 * chunks than the last time.
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 */
+	public void update(double x, double y, double width, double height) {
+		int newMinX = (int) Math.floor(x / chunkSize) - MARGIN;
+		int newMinY = (int) Math.floor(y / chunkSize) - MARGIN;
+		int newMaxX = (int) Math.floor((x + width) / chunkSize) + MARGIN;
+		int newMaxY = (int) Math.floor((y + height) / chunkSize) + MARGIN;
+		if (newMinX == minX && newMinY == minY && newMaxX == maxX && newMaxY == maxY) {
+			return;
+		}
+		minX = newMinX;
+		minY = newMinY;
+		maxX = newMaxX;
+		maxY = newMaxY;
+		for (int layer = 0; layer < levelMap.size(); layer++) {
+			for (int cy = minY; cy <= maxY; cy++) {
+				for (int cx = minX; cx <= maxX; cx++) {
+					request(layer, cx, cy);
+				}
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Writes the changed chunks back to the level file. If the file is
+	 * another file than the one that was opened, the opened file is copied
+	 * first and the copy is used from then on.
+	 *
+	 * @param target
+	 * @throws IOException
+	 */
+	public void save(File target) throws IOException {
+		if (!target.getAbsoluteFile().equals(file.getFile().getAbsoluteFile())) {
+			Files.copy(file.getFile().toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			PagedLevelFile copy = levelFileManager.openPaged(target);
+			if (copy == null) {
+				throw new IOException("Could not open " + target);
+			}
+			file.close();
+			file = copy;
+			// Chunks that are being read from the old file are dropped, so
+			// they are read again the next time the view is updated.
+			pending.clear();
+			maxX = minX - 1;
+		}
+
+		ArrayList<Page> changed = new ArrayList<Page>();
+		ArrayList<ArrayList<GameObject>> changedObjects = new ArrayList<ArrayList<GameObject>>();
+		for (Page page : pages.values()) {
+			if (page.dirty) {
+				changed.add(page);
+				changedObjects.add(getObjects(page));
+			}
+		}
+		assignOrders(changed, changedObjects);
+
+		ArrayList<LevelChunk> chunks = new ArrayList<LevelChunk>();
+		ArrayList<GameObject[]> objects = new ArrayList<GameObject[]>();
+		ArrayList<int[]> orders = new ArrayList<int[]>();
+		for (int i = 0; i < changed.size(); i++) {
+			Page page = changed.get(i);
+			Layer layer = levelMap.get(page.layer);
+			GameObject[] sorted = changedObjects.get(i).toArray(new GameObject[0]);
+			Arrays.sort(sorted, Comparator.comparingInt(layer::getTag));
+			int[] sortedOrders = new int[sorted.length];
+			for (int j = 0; j < sorted.length; j++) {
+				sortedOrders[j] = layer.getTag(sorted[j]);
+			}
+			chunks.add(new LevelChunk(page.layer, page.cx, page.cy));
+			objects.add(sorted);
+			orders.add(sortedOrders);
+		}
+		if (!changed.isEmpty()) {
+			file.writeChunks(chunks, objects, orders);
+		}
+		for (int i = 0; i < changed.size(); i++) {
+			changed.get(i).dirty = false;
+		}
+		evict();
+	}
+
+	/**
+	 * Stops listening to the layers and closes the level file.
+	 */
+	public void dispose() {
+		disposed = true;
+		for (int i = 0; i < levelMap.size(); i++) {
+			levelMap.get(i).removeListener(this);
+		}
+		reader.shutdownNow();
+		file.close();
+	}
+
+	/**
+	 * Gives the objects that are not in the file yet draw orders above every
+	 * object of their layer in the file, keeping the order they have in the
+	 * layer.
+	 */
+	private void assignOrders(ArrayList<Page> changed, ArrayList<ArrayList<GameObject>> objects)
+			throws IOException {
+		for (int layer = 0; layer < levelMap.size(); layer++) {
+			Layer l = levelMap.get(layer);
+			ArrayList<GameObject> added = new ArrayList<GameObject>();
+			for (int i = 0; i < changed.size(); i++) {
+				if (changed.get(i).layer != layer) {
+					continue;
+				}
+				for (GameObject o : objects.get(i)) {
+					if (l.getTag(o) == NEW) {
+						added.add(o);
+					}
+				}
+			}
+			added.sort(Layer.DRAW_ORDER);
+			for (int i = 0; i < added.size(); i++) {
+				l.setTag(added.get(i), file.nextOrder(layer));
+			}
+		}
+	}
+
+	@Override
+	public void objectAdded(Layer layer, GameObject o) {
+		if (paging) {
+			return;
+		}
+		Page page = getPage(layer, o);
+		// A moved object keeps its row in the layer, and with it its tag and
+		// its place in the draw order.
+		if (o != moved) {
+			layer.setTag(o, NEW);
+		}
+		moved = null;
+		page.count++;
+		page.dirty = true;
+		residentObjects++;
+	}
+
+	@Override
+	public void objectRemoved(Layer layer, GameObject o) {
+		if (paging) {
+			return;
+		}
+		Page page = getPage(layer, o);
+		// An object that is still in the layer is being moved and is added
+		// again right away.
+		if (layer.contains(o)) {
+			moved = o;
+		}
+		page.count--;
+		page.dirty = true;
+		residentObjects--;
+	}
+
+	/**
+	 * Returns the page of the chunk that the top left corner of the object is
+	 * in. Objects are stored in the chunk their corner is in.
+	 */
+	private Page getPage(Layer layer, GameObject o) {
+		int cx = (int) Math.floor(o.getX() / chunkSize);
+		int cy = (int) Math.floor(o.getY() / chunkSize);
+		return getPage(levelMap.indexOf(layer), cx, cy);
+	}
+
+	/**
+	 * Returns the objects of a loaded chunk, which are the objects of the
+	 * layer whose top left corner is in the chunk.
+	 */
+	private ArrayList<GameObject> getObjects(Page page) {
+		ArrayList<GameObject> objects = levelMap.get(page.layer).getObjectsIn(page.cx * chunkSize,
+				page.cy * chunkSize, chunkSize, chunkSize);
+		objects.removeIf(o -> (int) Math.floor(o.getX() / chunkSize) != page.cx
+				|| (int) Math.floor(o.getY() / chunkSize) != page.cy);
+		return objects;
+	}
+
+	/**
+	 * Returns the page of a chunk. A chunk that is edited before it has been
+	 * read in the background is read right away.
+	 */
+	private Page getPage(int layer, int cx, int cy) {
+		Page page = pages.get(key(layer, cx, cy));
+		if (page != null) {
+			return page;
+		}
+		int[] orders = new int[file.getObjectCount(layer, cx, cy)];
+		return install(layer, cx, cy, read(file, layer, cx, cy, orders), orders);
+	}
+
+	/**
+	 * Starts reading a chunk on the background thread, unless it is loaded or
+	 * already being read. The chunk is added to the level on the JavaFX
+	 * thread once it has been read.
+	 */
+	private void request(int layer, int cx, int cy) {
+		Long key = key(layer, cx, cy);
+		if (pages.containsKey(key) || !pending.add(key)) {
+			return;
+		}
+		PagedLevelFile source = file;
+		reader.execute(() -> {
+			int[] orders;
+			GameObject[] objects;
+			// The chunk could be written between counting and reading it.
+			synchronized (source) {
+				orders = new int[source.getObjectCount(layer, cx, cy)];
+				objects = read(source, layer, cx, cy, orders);
+			}
+			Platform.runLater(() -> {
+				pending.remove(key);
+				// The chunk was read right away because it was edited, or it
+				// is no longer wanted.
+				if (disposed || source != file || pages.containsKey(key) || cx < minX || cx > maxX || cy < minY
+						|| cy > maxY) {
+					return;
+				}
+				install(layer, cx, cy, objects, orders);
+				evict();
+				if (onLoaded != null && objects.length > 0) {
+					onLoaded.accept(getBounds(objects));
+				}
+			});
+		});
+	}
+
+	private static GameObject[] read(PagedLevelFile source, int layer, int cx, int cy, int[] orders) {
+		try {
+			return source.readChunk(layer, cx, cy, orders);
+		} catch (IOException e) {
+			// Keep the chunk empty and unchanged, so the objects in the file
+			// are not overwritten.
+			e.printStackTrace();
+			return new GameObject[0];
+		}
+	}
+
+	/**
+	 * Adds the objects of a chunk that has been read to the level.
+	 */
+	private Page install(int layer, int cx, int cy, GameObject[] objects, int[] orders) {
+		Page page = new Page(layer, cx, cy);
+		page.count = objects.length;
+		pages.put(key(layer, cx, cy), page);
+		residentObjects += objects.length;
+		paging = true;
+		try {
+			Layer l = levelMap.get(layer);
+			l.addAll(Arrays.asList(objects));
+			for (int i = 0; i < objects.length; i++) {
+				l.setTag(objects[i], orders[i]);
+			}
+		} finally {
+			paging = false;
+		}
+		return page;
+	}
+
+	private static Rectangle2D getBounds(GameObject[] objects) {
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < objects.length; i++) {
+			GameObject o = objects[i];
+			minX = Math.min(minX, o.getX());
+			minY = Math.min(minY, o.getY());
+			maxX = Math.max(maxX, o.getX() + o.getWidth());
+			maxY = Math.max(maxY, o.getY() + o.getHeight());
+		}
+		return new Rectangle2D(minX, minY, maxX - minX, maxY - minY);
+	}
+
+	/**
+	 * Drops the chunks that have been out of view the longest until the
+	 * loaded objects fit in the budget. Chunks in view, changed chunks and
+	 * chunks with pinned objects are kept. Chunks without objects are always
+	 * dropped once they are out of view, since they do not count against the
+	 * budget but would pile up while panning around the level.
+	 */
+	private void evict() {
+		HashSet<Long> pinned = residentObjects > maxResidentObjects ? getPinnedPages() : null;
+		Iterator<Map.Entry<Long, Page>> it = pages.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Page> e = it.next();
+			Page page = e.getValue();
+			if (page.dirty || (page.cx >= minX && page.cx <= maxX && page.cy >= minY && page.cy <= maxY)) {
+				continue;
+			}
+			if (page.count == 0) {
+				it.remove();
+				continue;
+			}
+			if (residentObjects <= maxResidentObjects || pinned.contains(e.getKey())) {
+				continue;
+			}
+			it.remove();
+			residentObjects -= page.count;
+			paging = true;
+			try {
+				levelMap.get(page.layer).removeAll(getObjects(page));
+			} finally {
+				paging = false;
+			}
+		}
+	}
+
+	/**
+	 * Returns the keys of the chunks that the pinned objects are in.
+	 */
+	private HashSet<Long> getPinnedPages() {
+		HashSet<Long> pinned = new HashSet<Long>();
+		if (pinnedObjects == null) {
+			return pinned;
+		}
+		for (GameObject o : pinnedObjects.get()) {
+			// Objects that are not in a layer, such as deleted objects, are
+			// read again with their chunk if they are brought back.
+			Layer layer = Layer.layerOf(levelMap, o);
+			if (layer != null) {
+				pinned.add(key(levelMap.indexOf(layer), (int) Math.floor(o.getX() / chunkSize),
+						(int) Math.floor(o.getY() / chunkSize)));
+			}
+		}
+		return pinned;
+	}
+
+	private static Long key(int layer, int cx, int cy) {
+		return ((long) layer << 56) | (((long) cx & 0xFFFFFFFL) << 28) | ((long) cy & 0xFFFFFFFL);
+	}
+
+	/**
+	 * One loaded chunk of a layer. The objects themselves are only in the
+	 * layer, see {@link LevelPager#getObjects(Page)}.
+	 */
+	private static class Page {
+		private int layer;
+		private int cx;
+		private int cy;
+		private int count = 0;
+		private boolean dirty = false;
+
+		private Page(int layer, int cx, int cy) {
+			this.layer = layer;
+			this.cx = cx;
+			this.cy = cy;
+		}
+	}
+}
@@ -2,15 +2,26 @@ package editor.ui;
 
 import java.awt.Point;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Set;
 
 import editor.controller.MainWindowController;
 import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.OverlapTracker;
 import editor.entities.Pair;
+import editor.entities.SpriteListener;
+import editor.entities.SpriteRegistry;
 import editor.event.EditorEventHandler;
+import editor.event.JournalRecorder;
 import io.Level;
 import io.LevelFileManager;
+import io.LevelJournal;
 import io.LevelSettings;
+import io.PagedLevelFile;
+import javafx.geometry.Point2D;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.image.Image;
@@ -37,17 +48,31 @@ public class LevelPane extends Canvas {
 
 	private MainWindowController mainController;
 	public EditorEventHandler eventHandler;
+	// Records the edits in the journal of the level file, so saving only has
+	// to append them.
+	private JournalRecorder journalRecorder;
 	private LevelFileManager levelFileManager;
 	private LevelSettings levelSettings;
 
 	private GraphicsContext g;
-	private ArrayList<Point> grid;
-	public ArrayList<ArrayList<GameObject>> levelMap;
+	private RedrawScheduler redrawScheduler;
+	private ChunkCache chunkCache;
+	private OverlapTracker overlapTracker;
+	// Loads the level around the view if it is too big to be loaded whole.
+	private LevelPager pager;
+	private AutosaveService autosave;
+	private Rectangle2D previewBounds;
+	private Grid grid;
+	public ArrayList<Layer> levelMap;
 	private ArrayList<GameObject> selectedObjects;
-	private ArrayList<Pair<GameObject, Point>> movingObjects;
+	// Objects that are being dragged and where they were when the drag started.
+	private GameObject[] movingObjects;
+	private float[] movingStartX;
+	private float[] movingStartY;
 	private ArrayList<GameObject> clipboard;
 	private Rectangle selectRectangle;
-	private GameObject[] allObjects;
+	private SpriteRegistry sprites;
+	private SpriteListener spriteListener;
 	private GameObject currentObject;
 	private int currentLayer = 4;
 	private double scale = 1.0;
@@ -79,82 +104,171 @@ public class LevelPane extends Canvas {
 		levelFileManager = new LevelFileManager();
 		clipboard = new ArrayList<GameObject>();
 		selectedObjects = new ArrayList<GameObject>();
-		levelMap = new ArrayList<ArrayList<GameObject>>();
+		levelMap = new ArrayList<Layer>();
 		eventHandler = new EditorEventHandler();
+		journalRecorder = new JournalRecorder(levelMap);
+		eventHandler.addListener(journalRecorder);
+		sprites = SpriteRegistry.getInstance();
 		for (int i = 0; i < 8; i++) {
-			levelMap.add(new ArrayList<GameObject>());
+			levelMap.add(new Layer());
 		}
 		g = this.getGraphicsContext2D();
+		redrawScheduler = new RedrawScheduler(this);
+		chunkCache = new ChunkCache(levelMap);
+		overlapTracker = new OverlapTracker(levelMap);
+		// Draw the sprites that were shown as placeholders once they are loaded.
+		spriteListener = sprite -> {
+			chunkCache.invalidatePlaceholders();
+			draw();
+		};
+		sprites.addListener(spriteListener);
+		// A paged level or a level that is being loaded is not all in memory,
+		// so it can not be copied.
+		autosave = new AutosaveService(levelFileManager, eventHandler,
+				() -> pager == null && !mainController.isLoading() ? new Level(levelSettings, levelMap) : null,
+				() -> mainController.openedFile);
 	}
 
-	private void setGrid(int width, int height) {
-		grid = new ArrayList<Point>();
-		for (int i = 0; i < width / levelSettings.tileSize; i++) {
-			for (int j = 0; j < height / levelSettings.tileSize; j++) {
-				grid.add(new Point((int) (i * levelSettings.tileSize), (int) (j * levelSettings.tileSize)));
-			}
+	/**
+	 * Stops painting the LevelPane. Called when the pane is replaced.
+	 */
+	public void dispose() {
+		redrawScheduler.stop();
+		autosave.stop();
+		chunkCache.dispose();
+		sprites.removeListener(spriteListener);
+		overlapTracker.setEnabled(false);
+		if (pager != null) {
+			pager.dispose();
+		}
+		if (journalRecorder.getJournal() != null) {
+			journalRecorder.getJournal().close();
+		}
+	}
+
+	/**
+	 * Saves the following edits to the journal of the level file. Edits that
+	 * were made before are not in the journal, so in that case the next save
+	 * writes the whole level instead.
+	 * 
+	 * @param file
+	 */
+	public void openJournal(File file) {
+		if (journalRecorder.hasMissedEdits()) {
+			return;
+		}
+		if (journalRecorder.getJournal() != null) {
+			journalRecorder.getJournal().close();
 		}
+		journalRecorder.setJournal(levelFileManager.openJournal(file));
+	}
+
+	/**
+	 * Edits a level that is too big to be loaded whole. Only the part of the
+	 * level around the view is loaded, and saving writes the changed parts
+	 * back to the file.
+	 * 
+	 * @param file
+	 */
+	public void setPagedLevel(PagedLevelFile file) {
+		pager = new LevelPager(levelFileManager, file, levelMap);
+		// Keep the chunks of the objects that can still be undone or are
+		// selected, so they are not read again as other objects.
+		pager.setPinnedObjects(() -> {
+			Set<GameObject> pinned = eventHandler.getObjects();
+			pinned.addAll(selectedObjects);
+			return pinned;
+		});
+		// Chunks are read in the background, so draw them when they arrive.
+		pager.setOnLoaded(bounds -> redrawScheduler.invalidate(
+				new Rectangle2D((bounds.getMinX() + viewportX) * scale - 1, (bounds.getMinY() + viewportY) * scale - 1,
+						bounds.getWidth() * scale + 2, bounds.getHeight() * scale + 2)));
+		draw();
+	}
+
+	private void setGrid(int width, int height) {
+		grid = new Grid(levelSettings.tileSize, width, height);
 	}
 	
+	private void setCellSize(int tileSize) {
+		for (int i = 0; i < levelMap.size(); i++) {
+			levelMap.get(i).setCellSize(tileSize);
+		}
+	}
+
 	public void updateMapSize(LevelSettings levelSettings, int width, int height) {
 		this.levelSettings = levelSettings;
 		setGrid(width, height);
+		setCellSize(levelSettings.tileSize);
 		this.width = width;
 		this.height = height;
 	}
 
 	/**
-	 * Draws every object that will be displayed in the LevelPane.
+	 * Schedules a repaint of the whole LevelPane. The pane is painted at most
+	 * once per frame, no matter how many times this is called.
 	 */
 	public void draw() {
+		redrawScheduler.invalidate();
+	}
+
+	/**
+	 * Paints every object that is displayed in the given region of the
+	 * LevelPane. The region is given in pixels of the pane, and the whole pane
+	 * is painted if it is null.
+	 * 
+	 * @param region
+	 */
+	void paint(Rectangle2D region) {
+		if (region == null) {
+			region = new Rectangle2D(0, 0, this.getWidth(), this.getHeight());
+		}
+		if (pager != null) {
+			pager.update(-viewportX, -viewportY, this.getWidth() / scale, this.getHeight() / scale);
+		}
+		g.save();
+		g.beginPath();
+		g.rect(region.getMinX(), region.getMinY(), region.getWidth(), region.getHeight());
+		g.clip();
+
 		g.setFill(new Color(0.2, 0.2, 0.2, 1));
-		g.fillRect(0, 0, this.getWidth(), this.getHeight());
+		g.fillRect(region.getMinX(), region.getMinY(), region.getWidth(), region.getHeight());
 		g.scale(scale, scale);
 
 		// Draw grid.
 		g.setStroke(new Color(0.5, 0.5, 0.5, 1));
-		for (int i = 0; i < grid.size(); i++) {
-			double x = grid.get(i).x + viewportX;
-			double y = grid.get(i).y + viewportY;
-			if (isInView(x, y, levelSettings.tileSize, levelSettings.tileSize)) {
-				g.strokeRect(x, y, levelSettings.tileSize, levelSettings.tileSize);
-			}
-		}
+		grid.draw(g, viewportX, viewportY, this.getWidth() / scale, this.getHeight() / scale);
 		g.setFill(Color.BLACK);
 
-		// Draw all placed objects.
+		// Draw all placed objects inside the region from the cached chunks.
+		// The chunks are drawn in pixels, so the scaling is reset meanwhile.
+		g.save();
+		g.setTransform(1, 0, 0, 1, 0, 0);
 		for (int i = 0; i < levelMap.size(); i++) {
 			if (showOnlyCurrentLayer) {
 				i = currentLayer - 1;
 			}
-			for (int j = 0; j < levelMap.get(i).size(); j++) {
-				GameObject t = levelMap.get(i).get(j);
-				for (int k = 0; k < allObjects.length; k++) {
-					if (t.getObjectName().equals(allObjects[k].getObjectName())) {
-						double x = (t.x + viewportX) / t.scale;
-						double y = (t.y + viewportY) / t.scale;
-						g.scale(t.scale, t.scale);
-						if (isInView(x, y, allObjects[k].image.getWidth(), allObjects[k].image.getHeight())) {
-							g.drawImage(allObjects[k].image, x, y);
-						}
-						g.scale(1 / t.scale, 1 / t.scale);
-					}
-				}
-			}
+			chunkCache.draw(g, i, scale, viewportX, viewportY, region);
 			if (showOnlyCurrentLayer) {
 				break;
 			}
 		}
+		g.restore();
 
-		// Highlight overlaps.
+		// Highlight overlaps inside the region. The highlight is a bit bigger
+		// than the object, so objects just outside the region are included.
 		if (highlightOverlaps) {
+			double margin = 32;
+			double regionX = region.getMinX() / scale - viewportX - margin;
+			double regionY = region.getMinY() / scale - viewportY - margin;
+			double regionWidth = region.getWidth() / scale + margin * 2;
+			double regionHeight = region.getHeight() / scale + margin * 2;
 			for (int i = 0; i < levelMap.size(); i++) {
-				for (int j = 0; j < levelMap.get(i).size(); j++) {
-					for (int k = 0; k < levelMap.get(i).size(); k++) {
-						GameObject o = levelMap.get(i).get(k);
-						if (k != j && levelMap.get(i).get(j).overlaps(o)) {
-							drawHighlight(o);
-						}
+				ArrayList<GameObject> visible = levelMap.get(i).getObjectsIn(regionX, regionY, regionWidth,
+						regionHeight);
+				for (int j = 0; j < visible.size(); j++) {
+					if (overlapTracker.isOverlapping(visible.get(j))) {
+						drawHighlight(visible.get(j));
 					}
 				}
 			}
@@ -167,28 +281,51 @@ public class LevelPane extends Canvas {
 		}
 
 		// Draw current object at cursor.
-		if (currentObject != null) {
+		previewBounds = getPreviewBounds();
+		if (previewBounds != null) {
 			GameObject t = currentObject;
-			Image img = new Image("file:" + t.imageURL, t.width * objectScale, t.height * objectScale, false, false);
-			double x = mouseX / scale;
-			double y = mouseY / scale;
-			if (snapToGrid) {
-				Point p = findClosestGridPoint(x, y);
-				g.drawImage(img, p.x + viewportX, p.y + viewportY);
-			} else {
-				g.drawImage(img, x - (t.width) / 2, y - (t.height) / 2);
-			}
+			Image img = sprites.getScaledImage(t.getSpriteId(), t.getWidth() * objectScale,
+					t.getHeight() * objectScale);
+			Point2D p = getPreviewPosition();
+			g.drawImage(img, p.getX(), p.getY());
 		}
 
 		// Draw select rectangle.
 		g.setFill(new Color(0, 0, 1, 0.3));
 		if (selectRectangle != null) {
 			Rectangle r = getAdjustedRect();
-			getSelectedObjects(r);
 			g.fillRect(r.getX(), r.getY(), r.getWidth(), r.getHeight());
 		}
 
-		g.scale(1 / scale, 1 / scale);
+		g.restore();
+	}
+
+	/**
+	 * Returns where the object at the cursor is drawn, in the scaled
+	 * coordinates that the LevelPane is painted in.
+	 */
+	private Point2D getPreviewPosition() {
+		double x = mouseX / scale;
+		double y = mouseY / scale;
+		if (snapToGrid) {
+			Point p = findClosestGridPoint(x, y);
+			return new Point2D(p.x + viewportX, p.y + viewportY);
+		}
+		return new Point2D(x - (currentObject.getWidth()) / 2, y - (currentObject.getHeight()) / 2);
+	}
+
+	/**
+	 * Returns the region of the LevelPane, in pixels, that is covered by the
+	 * object at the cursor, or null if there is no object at the cursor.
+	 */
+	private Rectangle2D getPreviewBounds() {
+		if (currentObject == null || currentObject.getSpriteId() < 0 || grid == null) {
+			return null;
+		}
+		Point2D p = getPreviewPosition();
+		double w = currentObject.getWidth() * objectScale * scale;
+		double h = currentObject.getHeight() * objectScale * scale;
+		return new Rectangle2D(p.getX() * scale - 1, p.getY() * scale - 1, w + 2, h + 2);
 	}
 
 	private boolean isInView(double x, double y, double width, double height) {
@@ -199,59 +336,44 @@ public class LevelPane extends Canvas {
 	}
 
 	private void drawHighlight(GameObject o) {
-		WritableImage img = null;
-		for (int i = 0; i < allObjects.length; i++) {
-			if (o.getObjectName().equals(allObjects[i].getObjectName())) {
-				img = allObjects[i].highlightPixels;
-				break;
-			}
+		if (o.getSpriteId() < 0) {
+			return;
+		}
+		WritableImage img = sprites.getHighlightImage(o.getSpriteId());
+		if (img == null) {
+			return;
 		}
 
-		double s = 10.0 * ((o.width) / (double) (img.getWidth() - 10.0));
-		g.scale(o.scale, o.scale);
-		g.drawImage(img, ((o.x - s / 2) + viewportX) / o.scale, ((o.y - s / 2) + viewportY) / o.scale);
-		g.scale(1 / o.scale, 1 / o.scale);
+		double s = 10.0 * ((o.getWidth()) / (double) (img.getWidth() - 10.0));
+		g.scale(o.getScale(), o.getScale());
+		g.drawImage(img, ((o.getX() - s / 2) + viewportX) / o.getScale(), ((o.getY() - s / 2) + viewportY) / o.getScale());
+		g.scale(1 / o.getScale(), 1 / o.getScale());
 	}
 
 	private void drawSelected(GameObject o) {
-		WritableImage img = null;
-		for (int i = 0; i < allObjects.length; i++) {
-			if (o.getObjectName().equals(allObjects[i].getObjectName())) {
-				img = allObjects[i].selectedPixels;
-				break;
-			}
+		if (o.getSpriteId() < 0) {
+			return;
+		}
+		WritableImage img = sprites.getSelectedImage(o.getSpriteId());
+		if (img == null) {
+			return;
 		}
 
-		double s = 10.0 * ((o.width) / (double) (img.getWidth() - 10.0));
-		double x = ((o.x - s / 2) + viewportX) / o.scale;
-		double y = ((o.y - s / 2) + viewportY) / o.scale;
-		g.scale(o.scale, o.scale);
+		double s = 10.0 * ((o.getWidth()) / (double) (img.getWidth() - 10.0));
+		double x = ((o.getX() - s / 2) + viewportX) / o.getScale();
+		double y = ((o.getY() - s / 2) + viewportY) / o.getScale();
+		g.scale(o.getScale(), o.getScale());
 		if (isInView(x, y, img.getWidth(), img.getHeight())) {
 			g.drawImage(img, x, y);
 		}
-		g.scale(1 / o.scale, 1 / o.scale);
-	}
-
-	public void setAllObjects(GameObject[] allObjects) {
-		this.allObjects = allObjects;
+		g.scale(1 / o.getScale(), 1 / o.getScale());
 	}
 
 	private void getSelectedObjects(Rectangle r) {
 		selectedObjects.clear();
-		for (int i = 0; i < levelMap.size(); i++) {
-			if (!isCtrlDown) {
-				i = currentLayer - 1;
-			}
-			for (int j = 0; j < levelMap.get(i).size(); j++) {
-				GameObject o = levelMap.get(i).get(j);
-				if (r.intersects(o.x + viewportX, o.y + viewportY, o.width, o.height)) {
-					selectedObjects.add(o);
-				}
-			}
-			if (!isCtrlDown) {
-				break;
-			}
-		}
+		int layer = isCtrlDown ? -1 : currentLayer - 1;
+		selectedObjects.addAll(Layer.select(levelMap, layer, r.getX() - viewportX, r.getY() - viewportY,
+				r.getWidth(), r.getHeight()));
 	}
 
 	private Rectangle getAdjustedRect() {
@@ -271,27 +393,44 @@ public class LevelPane extends Canvas {
 	}
 
 	private Point findClosestGridPoint(double x, double y) {
-		Point result = grid.get(0);
-		for (int i = 0; i < grid.size(); i++) {
-			double adjustedX = x - levelSettings.tileSize / 2 - viewportX;
-			double adjustedY = y - levelSettings.tileSize / 2 - viewportY;
-			if (grid.get(i).distance(adjustedX, adjustedY) < result.distance(adjustedX, adjustedY)) {
-				result = grid.get(i);
-			}
-		}
-		return result;
+		double adjustedX = x - levelSettings.tileSize / 2 - viewportX;
+		double adjustedY = y - levelSettings.tileSize / 2 - viewportY;
+		return grid.findClosestPoint(adjustedX, adjustedY);
 	}
 
 	public void save(File file) {
+		if (mainController.isLoading()) {
+			return;
+		}
 		Level level = new Level(levelSettings, levelMap);
 		FileChooser fc = new FileChooser();
 		if (file == null) {
-			String filePath = fc.showSaveDialog(this.getScene().getWindow()).getAbsolutePath();
-			levelFileManager.writeFile(level, filePath);
+			file = fc.showSaveDialog(this.getScene().getWindow());
+		}
+		LevelJournal journal = journalRecorder.getJournal();
+		if (pager != null) {
+			// Only the loaded part of the level is in the layers.
+			try {
+				pager.save(file);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		} else if (journal != null && !journalRecorder.hasMissedEdits()
+				&& journal.getLevelFile().getAbsoluteFile().equals(file.getAbsoluteFile())) {
+			try {
+				journal.save();
+				journal.compactIfNeeded();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		} else {
+			if (journal != null) {
+				journal.close();
+				journalRecorder.setJournal(null);
+			}
 			levelFileManager.writeFile(level, file.getAbsolutePath());
+			journalRecorder.setJournal(levelFileManager.openJournal(file));
 		}
-		
 	}
 
 	/**
@@ -306,6 +445,7 @@ public class LevelPane extends Canvas {
 		this.height = height;
 		this.levelSettings = levelSettings;
 		setGrid(width, height);
+		setCellSize(levelSettings.tileSize);
 
 		Stage stage = (Stage) this.getScene().getWindow();
 		this.setWidth(stage.getWidth() - 10);
@@ -336,8 +476,11 @@ public class LevelPane extends Canvas {
 						selectRectangle.setWidth(e.getX() / scale - selectRectangle.getX());
 						selectRectangle.setHeight(e.getY() / scale - selectRectangle.getY());
 					}
+					getSelectedObjects(getAdjustedRect());
 				} else if (e.getButton() == MouseButton.PRIMARY) {
 					if (isCtrlDown) {
+						// Everything placed in one drag is undone at once.
+						eventHandler.beginTransaction();
 						placeContinuously();
 					} else {
 						if (isOverSelected()) {
@@ -441,9 +584,12 @@ public class LevelPane extends Canvas {
 		});
 
 		this.setOnMouseMoved(e -> {
+			// Only the object at the cursor changes when the mouse is moved,
+			// so only where it was and where it is now have to be painted.
+			redrawScheduler.invalidate(previewBounds);
 			mouseX = e.getX();
 			mouseY = e.getY();
-			draw();
+			redrawScheduler.invalidate(getPreviewBounds());
 		});
 
 		this.setOnMousePressed(e -> {
@@ -464,6 +610,7 @@ public class LevelPane extends Canvas {
 			if (movingIndex != -1) {
 				addMovingEvent();
 			}
+			eventHandler.commitTransaction();
 			movingIndex = -1;
 			isMouseDown = false;
 			isDragging = false;
@@ -472,27 +619,34 @@ public class LevelPane extends Canvas {
 			draw();
 		});
 
+		redrawScheduler.start();
+		autosave.start();
 		draw();
 	}
 
 	private void initMovingEvent() {
-		movingObjects = new ArrayList<Pair<GameObject, Point>>();
-		for (int i = 0; i < selectedObjects.size(); i++) {
-			Point p = new Point();
-			p.setLocation(selectedObjects.get(i).x, selectedObjects.get(i).y);
-			movingObjects.add(new Pair<GameObject, Point>(selectedObjects.get(i), p));
+		movingObjects = selectedObjects.toArray(new GameObject[selectedObjects.size()]);
+		movingStartX = new float[movingObjects.length];
+		movingStartY = new float[movingObjects.length];
+		for (int i = 0; i < movingObjects.length; i++) {
+			movingStartX[i] = movingObjects[i].getX();
+			movingStartY[i] = movingObjects[i].getY();
 		}
 	}
 
 	private void addMovingEvent() {
-		ArrayList<Pair<GameObject, Pair<Point, Point>>> moving = new ArrayList<Pair<GameObject, Pair<Point, Point>>>();
-		for (int i = 0; i < selectedObjects.size(); i++) {
-			Point nwPoint = new Point();
-			nwPoint.setLocation(selectedObjects.get(i).x, selectedObjects.get(i).y);
-			Pair<Point, Point> points = new Pair<Point, Point>(movingObjects.get(i).two, nwPoint);
-			moving.add(new Pair<GameObject, Pair<Point, Point>>(selectedObjects.get(i), points));
+		// The difference between two floats is exact as a double, so undoing
+		// the move puts the objects back exactly where they were.
+		double[] deltaX = new double[movingObjects.length];
+		double[] deltaY = new double[movingObjects.length];
+		for (int i = 0; i < movingObjects.length; i++) {
+			deltaX[i] = (double) movingObjects[i].getX() - movingStartX[i];
+			deltaY[i] = (double) movingObjects[i].getY() - movingStartY[i];
 		}
-		eventHandler.addMoveEvent(moving);
+		eventHandler.addMoveEvent(movingObjects, deltaX, deltaY);
+		movingObjects = null;
+		movingStartX = null;
+		movingStartY = null;
 	}
 
 	public void copyToClipboard() {
@@ -505,21 +659,21 @@ public class LevelPane extends Canvas {
 	}
 
 	public void pasteClipboard() {
-		double deltaX = clipboard.get(0).x - (mouseX / scale - viewportX);
-		double deltaY = clipboard.get(0).y - (mouseY / scale - viewportY);
+		double deltaX = clipboard.get(0).getX() - (mouseX / scale - viewportX);
+		double deltaY = clipboard.get(0).getY() - (mouseY / scale - viewportY);
 		selectedObjects.clear();
 		ArrayList<Pair<GameObject, Integer>> placed = new ArrayList<Pair<GameObject, Integer>>();
 		for (int i = 0; i < clipboard.size(); i++) {
 			GameObject t = new GameObject();
-			t.type = clipboard.get(i).type;
-			t.setObjectName(clipboard.get(i).getObjectName());
-			t.imageURL = "res/sprites/" + t.getObjectName() + ".png";
-			t.width = clipboard.get(i).width;
-			t.height = clipboard.get(i).height;
-			t.scale = clipboard.get(i).scale;
-			t.x = clipboard.get(i).x - deltaX;
-			t.y = clipboard.get(i).y - deltaY;
-			t.properties = clipboard.get(i).properties;
+			t.setSpriteId(clipboard.get(i).getSpriteId());
+			t.setWidth(clipboard.get(i).getWidth());
+			t.setHeight(clipboard.get(i).getHeight());
+			t.setScale(clipboard.get(i).getScale());
+			t.setX((float) (clipboard.get(i).getX() - deltaX));
+			t.setY((float) (clipboard.get(i).getY() - deltaY));
+			if (clipboard.get(i).hasProperties()) {
+				t.setProperties(clipboard.get(i).getProperties());
+			}
 			selectedObjects.add(t);
 			levelMap.get(currentLayer - 1).add(t);
 			placed.add(new Pair<GameObject, Integer>(t, currentLayer - 1));
@@ -527,6 +681,19 @@ public class LevelPane extends Canvas {
 		eventHandler.addPlaceEvent(placed);
 	}
 
+	/**
+	 * Adds objects to the level without recording an event, used when a level
+	 * is loaded. Each object is paired with the index of its layer.
+	 * 
+	 * @param objects
+	 */
+	public void addObjects(ArrayList<Pair<GameObject, Integer>> objects) {
+		for (int i = 0; i < objects.size(); i++) {
+			levelMap.get(objects.get(i).two).add(objects.get(i).one);
+		}
+		draw();
+	}
+
 	public void deleteSelected() {
 		ArrayList<Pair<GameObject, Integer>> deleted = new ArrayList<Pair<GameObject, Integer>>();
 		for (int i = 0; i < selectedObjects.size(); i++) {
@@ -548,19 +715,28 @@ public class LevelPane extends Canvas {
 
 		if (snapToGrid) {
 			Point p = findClosestGridPoint(x / scale, y / scale);
-			snapX = p.x - selectedObjects.get(movingIndex).x;
-			snapY = p.y - selectedObjects.get(movingIndex).y;
+			snapX = p.x - selectedObjects.get(movingIndex).getX();
+			snapY = p.y - selectedObjects.get(movingIndex).getY();
 		}
 
 		for (int i = 0; i < selectedObjects.size(); i++) {
-			double nwX = selectedObjects.get(i).x - (prevX - x / scale);
-			double nwY = selectedObjects.get(i).y - (prevY - y / scale);
+			double nwX = selectedObjects.get(i).getX() - (prevX - x / scale);
+			double nwY = selectedObjects.get(i).getY() - (prevY - y / scale);
 			if (snapToGrid) {
-				nwX = selectedObjects.get(i).x + snapX;
-				nwY = selectedObjects.get(i).y + snapY;
+				nwX = selectedObjects.get(i).getX() + snapX;
+				nwY = selectedObjects.get(i).getY() + snapY;
 			}
-			selectedObjects.get(i).x = nwX;
-			selectedObjects.get(i).y = nwY;
+			moveObject(selectedObjects.get(i), nwX, nwY);
+		}
+	}
+
+	private void moveObject(GameObject o, double x, double y) {
+		Layer layer = Layer.layerOf(levelMap, o);
+		if (layer != null) {
+			layer.move(o, x, y);
+		} else {
+			o.setX((float) x);
+			o.setY((float) y);
 		}
 	}
 
@@ -575,13 +751,8 @@ public class LevelPane extends Canvas {
 	}
 
 	private boolean isOverObject() {
-		for (int i = 0; i < levelMap.get(currentLayer - 1).size(); i++) {
-			GameObject o = levelMap.get(currentLayer - 1).get(i);
-			if (o.contains(mouseX / scale - viewportX, mouseY / scale - viewportY)) {
-				return true;
-			}
-		}
-		return false;
+		return levelMap.get(currentLayer - 1).getObjectAt(mouseX / scale - viewportX,
+				mouseY / scale - viewportY) != null;
 	}
 
 	private int getDragObjectIndex() {
@@ -595,18 +766,17 @@ public class LevelPane extends Canvas {
 	}
 
 	private void selectObject() {
-		for (int i = levelMap.get(currentLayer - 1).size() - 1; i >= 0; i--) {
-			GameObject o = levelMap.get(currentLayer - 1).get(i);
-			if (o.contains(mouseX / scale - viewportX, mouseY / scale - viewportY)) {
-				if (!selectedObjects.contains(o)) {
-					hideProperties();
-					selectedObjects.clear();
-					selectedObjects.add(o);
-					showProperties();
-				}
-				draw();
-				return;
+		GameObject o = levelMap.get(currentLayer - 1).getObjectAt(mouseX / scale - viewportX,
+				mouseY / scale - viewportY);
+		if (o != null) {
+			if (!selectedObjects.contains(o)) {
+				hideProperties();
+				selectedObjects.clear();
+				selectedObjects.add(o);
+				showProperties();
 			}
+			draw();
+			return;
 		}
 		hideProperties();
 		selectedObjects.clear();
@@ -662,11 +832,11 @@ public class LevelPane extends Canvas {
 		double y = mouseY / scale;
 		if (snapToGrid) {
 			Point p = findClosestGridPoint(x, y);
-			o.x = p.x;
-			o.y = p.y;
+			o.setX(p.x);
+			o.setY(p.y);
 		} else {
-			o.x = x - o.width / 2 - viewportX;
-			o.y = y - o.height / 2 - viewportY;
+			o.setX((float) (x - o.getWidth() / 2 - viewportX));
+			o.setY((float) (y - o.getHeight() / 2 - viewportY));
 		}
 		levelMap.get(currentLayer - 1).add(o);
 		ArrayList<Pair<GameObject, Integer>> placed = new ArrayList<Pair<GameObject, Integer>>();
@@ -677,17 +847,16 @@ public class LevelPane extends Canvas {
 
 	private GameObject copyCurrentObject() {
 		GameObject t = new GameObject();
-		t.type = currentObject.type;
-		t.setObjectName(currentObject.getObjectName());
-		t.imageURL = "res/sprites/" + t.getObjectName() + ".png";
-		t.width = currentObject.width * objectScale;
-		t.height = currentObject.height * objectScale;
-		t.scale = objectScale;
+		t.setSpriteId(currentObject.getSpriteId());
+		t.setWidth((float) (currentObject.getWidth() * objectScale));
+		t.setHeight((float) (currentObject.getHeight() * objectScale));
+		t.setScale((float) objectScale);
 		return t;
 	}
 
 	public void setHighlightOverlaps(boolean highlightOverlaps) {
 		this.highlightOverlaps = highlightOverlaps;
+		overlapTracker.setEnabled(highlightOverlaps);
 	}
 
 	public void setShowOnlyCurrentLayer(boolean showOnlyCurrentLayer) {
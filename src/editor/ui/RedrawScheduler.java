@@ -0,0 +1,83 @@
+package editor.ui;
+
+import java.util.ArrayList;
+
+import javafx.animation.AnimationTimer;
+import javafx.geometry.Rectangle2D;
+
+/**
+ * Collects requests to repaint a LevelPane and paints it at most once per
+ * frame. A request can either be for the whole pane or for a region of it,
+ * in which case only the dirty regions are painted.
+ * 
+ * @author Jesper Bergstrom
+ * @name RedrawScheduler.java
+ * @version 0.00.00
+ */
+public class RedrawScheduler extends AnimationTimer {
+
+	private LevelPane levelPane;
+	private boolean fullRedraw = false;
+	private ArrayList<Rectangle2D> dirtyRegions;
+
+	public RedrawScheduler(LevelPane levelPane) {
+		this.levelPane = levelPane;
+		dirtyRegions = new ArrayList<Rectangle2D>();
+	}
+
+	/**
+	 * Marks the whole pane as dirty.
+	 */
+	public void invalidate() {
+		fullRedraw = true;
+		dirtyRegions.clear();
+	}
+
+	/**
+	 * Marks a region of the pane as dirty. The region is given in pixels of
+	 * the pane.
+	 * 
+	 * @param region
+	 */
+	public void invalidate(Rectangle2D region) {
+		if (!fullRedraw && region != null) {
+			dirtyRegions.add(region);
+		}
+	}
+
+	@Override
+	public void handle(long now) {
+		if (fullRedraw) {
+			fullRedraw = false;
+			dirtyRegions.clear();
+			levelPane.paint(null);
+		} else if (!dirtyRegions.isEmpty()) {
+			ArrayList<Rectangle2D> regions = new ArrayList<Rectangle2D>(dirtyRegions);
+			dirtyRegions.clear();
+
+			double minX = Double.MAX_VALUE;
+			double minY = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE;
+			double maxY = -Double.MAX_VALUE;
+			double area = 0;
+			for (int i = 0; i < regions.size(); i++) {
+				Rectangle2D r = regions.get(i);
+				minX = Math.min(minX, r.getMinX());
+				minY = Math.min(minY, r.getMinY());
+				maxX = Math.max(maxX, r.getMaxX());
+				maxY = Math.max(maxY, r.getMaxY());
+				area += r.getWidth() * r.getHeight();
+			}
+
+			// Paint the regions together if they are close to each other,
+			// otherwise paint them one by one.
+			if ((maxX - minX) * (maxY - minY) <= area * 2) {
+				levelPane.paint(new Rectangle2D(minX, minY, maxX - minX, maxY - minY));
+			} else {
+				for (int i = 0; i < regions.size(); i++) {
+					levelPane.paint(regions.get(i));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,885 @@
+package io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.Pair;
+
+/**
+ * Reads and writes the chunked level format, version 2 of the level file.
+ * The objects of each layer are grouped into square chunks of the level and
+ * every chunk is compressed on its own, so a part of the level can be read
+ * without reading the rest of the file.
+ * 
+ * The file starts with a 48 byte header:
+ * "LV2", the header size, the number of objects, the width and height in
+ * tiles, the tile size, the chunk size in tiles, the number of chunks, the
+ * position of the chunk directory, the id of the last journal that was
+ * folded into the file, or 0, and the number of bytes taken by old versions
+ * of chunks and directories. Older files have a 40 byte header without the
+ * last field. The directory has a 25 byte entry for
+ * every chunk: layer, x, y, number of objects, position and compressed size.
+ * 
+ * A chunk is compressed with Deflate. Uncompressed it holds each field for
+ * all of its objects after each other: draw order (int), x, y, width, height
+ * and scale (floats) and type (byte). The four byte fields are split into
+ * their bytes as well, so the first byte of every x comes first, then the
+ * second byte and so on. Keeping the same field and byte together lines up
+ * the values that repeat, which compresses a lot better than whole records.
+ * 
+ * Since every chunk is compressed on its own, the chunks are compressed and
+ * decompressed in parallel by fork-join tasks, and the layers of a level are
+ * built in parallel as well. The file is the same, byte for byte, as when it
+ * is written on one thread.
+ * 
+ * @author Jesper Bergstrom
+ * @name ChunkedLevelFile.java
+ * @version 0.00.00
+ */
+class ChunkedLevelFile {
+	
+	static final int HEADER_SIZE = 48;
+	// Size of the header of files that do not keep count of their unused
+	// bytes. Every other field is in the first bytes of any header.
+	static final int FIRST_HEADER_SIZE = 40;
+	static final int DIRECTORY_ENTRY_SIZE = 25;
+	// Size of an object in an uncompressed chunk.
+	static final int RECORD_SIZE = 25;
+	// Width and height of a chunk in tiles.
+	static final int CHUNK_TILES = 32;
+	// Chunks that a task reads or writes itself instead of splitting them
+	// between two new tasks.
+	private static final int CHUNKS_PER_TASK = 16;
+	
+	private short[] spriteIds;
+	private int[] spriteKeys;
+	private boolean parallel = true;
+	
+	ChunkedLevelFile(short[] spriteIds, int[] spriteKeys) {
+		this.spriteIds = spriteIds;
+		this.spriteKeys = spriteKeys;
+	}
+	
+	/**
+	 * Sets if levels are read and written on several threads or only on the
+	 * calling thread.
+	 * 
+	 * @param parallel
+	 */
+	void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+	static boolean isChunked(ByteBuffer header) {
+		return header.limit() >= 3 && header.get(0) == 'L' && header.get(1) == 'V' && header.get(2) == '2';
+	}
+	
+	LevelSettings readSettings(FileChannel channel) throws IOException {
+		ByteBuffer header = read(channel, 0, FIRST_HEADER_SIZE);
+		return new LevelSettings(header.getInt(8), header.getInt(12), header.getInt(16));
+	}
+	
+	ArrayList<LevelChunk> readDirectory(FileChannel channel) throws IOException {
+		ByteBuffer header = read(channel, 0, FIRST_HEADER_SIZE);
+		int chunkCount = header.getInt(24);
+		ByteBuffer directory = read(channel, header.getLong(28), chunkCount * DIRECTORY_ENTRY_SIZE);
+		ArrayList<LevelChunk> chunks = new ArrayList<LevelChunk>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			int p = i * DIRECTORY_ENTRY_SIZE;
+			LevelChunk chunk = new LevelChunk(directory.get(p), directory.getInt(p + 1), directory.getInt(p + 5));
+			chunk.count = directory.getInt(p + 9);
+			chunk.offset = directory.getLong(p + 13);
+			chunk.length = directory.getInt(p + 21);
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+	
+	/**
+	 * Returns the size in pixels of the chunks of a level.
+	 * 
+	 * @param levelSettings
+	 * @return
+	 */
+	static double getChunkSize(LevelSettings levelSettings) {
+		return (double) CHUNK_TILES * levelSettings.tileSize;
+	}
+	
+	/**
+	 * Reads a whole level. The objects are put back in the order they were
+	 * drawn in, even though they are stored by chunk.
+	 * 
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	Level read(FileChannel channel) throws IOException {
+		LevelSettings ls = readSettings(channel);
+		ArrayList<LevelChunk> chunks = readDirectory(channel);
+		return read(channel, ls, chunks);
+	}
+	
+	/**
+	 * Reads the chunks that touch the given rectangle. Objects that start in
+	 * another chunk but reach into the rectangle are not included.
+	 * 
+	 * @param channel
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 * @throws IOException
+	 */
+	Level readRegion(FileChannel channel, double x, double y, double width, double height) throws IOException {
+		LevelSettings ls = readSettings(channel);
+		double chunkSize = getChunkSize(ls);
+		int minX = (int) Math.floor(x / chunkSize);
+		int minY = (int) Math.floor(y / chunkSize);
+		int maxX = (int) Math.floor((x + width) / chunkSize);
+		int maxY = (int) Math.floor((y + height) / chunkSize);
+		ArrayList<LevelChunk> chunks = new ArrayList<LevelChunk>();
+		for (LevelChunk chunk : readDirectory(channel)) {
+			if (chunk.x >= minX && chunk.x <= maxX && chunk.y >= minY && chunk.y <= maxY) {
+				chunks.add(chunk);
+			}
+		}
+		return read(channel, ls, chunks);
+	}
+	
+	private Level read(FileChannel channel, LevelSettings ls, ArrayList<LevelChunk> chunks) throws IOException {
+		// Decompress the chunks, each task into its own part of the arrays.
+		GameObject[][] chunkObjects = new GameObject[chunks.size()][];
+		int[][] chunkOrders = new int[chunks.size()][];
+		run(new ReadTask(channel, chunks, chunkObjects, chunkOrders, 0, chunks.size()));
+		
+		// Sort and index the layers, one task per layer.
+		Layer[] layers = new Layer[LevelFileManager.LAYER_COUNT];
+		ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+		for (int i = 0; i < layers.length; i++) {
+			final int index = i;
+			jobs.add(() -> {
+				GameObject[] objects = inDrawOrder(chunks, chunkObjects, chunkOrders, index, null);
+				// The objects that were read are only copied into the columns
+				// of the layer, so they are not kept.
+				Layer layer = new Layer(ls.tileSize, objects.length);
+				for (int j = 0; j < objects.length; j++) {
+					GameObject o = objects[j];
+					layer.add(o.getX(), o.getY(), o.getWidth(), o.getHeight(), o.getScale(), o.getSpriteId());
+				}
+				layers[index] = layer;
+			});
+		}
+		runAll(jobs);
+		return new Level(ls, new ArrayList<Layer>(Arrays.asList(layers)));
+	}
+	
+	/**
+	 * Reads a whole level one layer at a time and hands the objects of each
+	 * layer to the listener in the order they are drawn in, in batches. Only
+	 * the layer that is being handed over is held, and no layers are built,
+	 * so the first objects arrive once the first layer has been read.
+	 * 
+	 * @param channel
+	 * @param batchSize
+	 * @param listener
+	 * @throws IOException
+	 */
+	void readObjects(FileChannel channel, int batchSize, LevelStreamListener listener) throws IOException {
+		ArrayList<LevelChunk> directory = readDirectory(channel);
+		long total = 0;
+		for (LevelChunk chunk : directory) {
+			total += chunk.count;
+		}
+		long read = 0;
+		ArrayList<Pair<GameObject, Integer>> batch = new ArrayList<Pair<GameObject, Integer>>(batchSize);
+		for (int layer = 0; layer < LevelFileManager.LAYER_COUNT; layer++) {
+			ArrayList<LevelChunk> chunks = new ArrayList<LevelChunk>();
+			for (LevelChunk chunk : directory) {
+				if (chunk.layer == layer) {
+					chunks.add(chunk);
+				}
+			}
+			GameObject[][] chunkObjects = new GameObject[chunks.size()][];
+			int[][] chunkOrders = new int[chunks.size()][];
+			run(new ReadTask(channel, chunks, chunkObjects, chunkOrders, 0, chunks.size()));
+			GameObject[] objects = inDrawOrder(chunks, chunkObjects, chunkOrders, layer, null);
+			for (int i = 0; i < objects.length; i++) {
+				batch.add(new Pair<GameObject, Integer>(objects[i], layer));
+				read++;
+				if (batch.size() == batchSize) {
+					if (!listener.batchRead(batch, read, total)) {
+						return;
+					}
+					batch = new ArrayList<Pair<GameObject, Integer>>(batchSize);
+				}
+			}
+		}
+		if (!batch.isEmpty()) {
+			listener.batchRead(batch, read, total);
+		}
+	}
+	
+	/**
+	 * Puts the objects of the chunks of one layer in the order they are drawn
+	 * in, even though they are stored by chunk.
+	 * 
+	 * @param chunks
+	 * @param chunkObjects the objects of each chunk
+	 * @param chunkOrders the draw order of each object of each chunk
+	 * @param layer
+	 * @param sortedOrders the draw order of each returned object is put here,
+	 *            unless it is null
+	 * @return
+	 */
+	static GameObject[] inDrawOrder(ArrayList<LevelChunk> chunks, GameObject[][] chunkObjects, int[][] chunkOrders,
+			int layer, int[] sortedOrders) {
+		int size = 0;
+		for (int c = 0; c < chunks.size(); c++) {
+			if (chunks.get(c).layer == layer) {
+				size += chunkObjects[c].length;
+			}
+		}
+		long[] orders = new long[size];
+		GameObject[] objects = new GameObject[size];
+		int filled = 0;
+		for (int c = 0; c < chunks.size(); c++) {
+			if (chunks.get(c).layer != layer) {
+				continue;
+			}
+			int[] order = chunkOrders[c];
+			for (int i = 0; i < order.length; i++) {
+				// The order goes in the high bits and the index in the low bits,
+				// so sorting the longs sorts the objects.
+				orders[filled] = ((long) order[i] << 32) | filled;
+				objects[filled] = chunkObjects[c][i];
+				filled++;
+			}
+		}
+		Arrays.sort(orders);
+		GameObject[] sorted = new GameObject[size];
+		for (int i = 0; i < size; i++) {
+			sorted[i] = objects[(int) orders[i]];
+			if (sortedOrders != null) {
+				sortedOrders[i] = (int) (orders[i] >> 32);
+			}
+		}
+		return sorted;
+	}
+	
+	/**
+	 * Reads the objects of one chunk.
+	 * 
+	 * @param channel
+	 * @param chunk
+	 * @param order the draw order of each object is put here
+	 * @param inflater
+	 * @return
+	 * @throws IOException
+	 */
+	GameObject[] readChunk(FileChannel channel, LevelChunk chunk, int[] order, Inflater inflater)
+			throws IOException {
+		ByteBuffer compressed = read(channel, chunk.offset, chunk.length);
+		byte[] raw = new byte[chunk.count * RECORD_SIZE];
+		inflate(compressed, chunk, raw, inflater);
+		
+		int count = chunk.count;
+		GameObject[] objects = new GameObject[count];
+		for (int i = 0; i < count; i++) {
+			GameObject o = new GameObject();
+			order[i] = getInt(raw, count, 0, i);
+			o.setX(Float.intBitsToFloat(getInt(raw, count, 1, i)));
+			o.setY(Float.intBitsToFloat(getInt(raw, count, 2, i)));
+			o.setWidth(Float.intBitsToFloat(getInt(raw, count, 3, i)));
+			o.setHeight(Float.intBitsToFloat(getInt(raw, count, 4, i)));
+			o.setScale(Float.intBitsToFloat(getInt(raw, count, 5, i)));
+			o.setSpriteId(spriteIds[raw[count * 24 + i] & 0xFF]);
+			objects[i] = o;
+		}
+		return objects;
+	}
+	
+	/**
+	 * Reads only the draw order of the objects of one chunk. The orders are
+	 * stored first in a chunk, so the rest of it is not decompressed.
+	 * 
+	 * @param channel
+	 * @param chunk
+	 * @param inflater
+	 * @return
+	 * @throws IOException
+	 */
+	int[] readOrders(FileChannel channel, LevelChunk chunk, Inflater inflater) throws IOException {
+		ByteBuffer compressed = read(channel, chunk.offset, chunk.length);
+		int count = chunk.count;
+		byte[] raw = new byte[count * 4];
+		inflate(compressed, chunk, raw, inflater);
+		int[] orders = new int[count];
+		for (int i = 0; i < count; i++) {
+			orders[i] = getInt(raw, count, 0, i);
+		}
+		return orders;
+	}
+	
+	/**
+	 * Decompresses the start of a chunk, as much as fits in raw.
+	 */
+	private static void inflate(ByteBuffer compressed, LevelChunk chunk, byte[] raw, Inflater inflater)
+			throws IOException {
+		inflater.reset();
+		inflater.setInput(compressed.array(), 0, chunk.length);
+		try {
+			int n = 0;
+			while (n < raw.length) {
+				int inflated = inflater.inflate(raw, n, raw.length - n);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("Chunk " + chunk.x + ", " + chunk.y + " is corrupt");
+				}
+				n += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Chunk " + chunk.x + ", " + chunk.y + " is corrupt", e);
+		}
+	}
+	
+	/**
+	 * Writes a whole level. The channel must be empty.
+	 * 
+	 * @param level
+	 * @param channel
+	 * @throws IOException
+	 */
+	void write(Level level, FileChannel channel) throws IOException {
+		write(LevelSnapshot.of(level), channel, 0);
+	}
+	
+	/**
+	 * Writes a whole level that the given journal has been folded into.
+	 * 
+	 * @param level
+	 * @param channel
+	 * @param journalId
+	 * @throws IOException
+	 */
+	void write(LevelSnapshot level, FileChannel channel, int journalId) throws IOException {
+		double chunkSize = getChunkSize(level.levelSettings);
+		
+		// Group the objects of each layer by chunk, one task per layer. The
+		// keys start with the layer, so the chunks of the layers one after the
+		// other are in key order.
+		@SuppressWarnings("unchecked")
+		TreeMap<Long, ChunkObjects>[] grouped = new TreeMap[level.getLayerCount()];
+		ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+		for (int i = 0; i < grouped.length; i++) {
+			final int layer = i;
+			jobs.add(() -> {
+				TreeMap<Long, ChunkObjects> layerChunks = new TreeMap<Long, ChunkObjects>();
+				float[] x = level.x[layer];
+				float[] y = level.y[layer];
+				for (int j = 0; j < x.length; j++) {
+					int cx = (int) Math.floor(x[j] / chunkSize);
+					int cy = (int) Math.floor(y[j] / chunkSize);
+					Long key = key(layer, cx, cy);
+					ChunkObjects chunk = layerChunks.get(key);
+					if (chunk == null) {
+						chunk = new ChunkObjects(new LevelChunk(layer, cx, cy));
+						layerChunks.put(key, chunk);
+					}
+					chunk.add(j);
+				}
+				grouped[layer] = layerChunks;
+			});
+		}
+		runAll(jobs);
+		ArrayList<ChunkObjects> ordered = new ArrayList<ChunkObjects>();
+		for (int i = 0; i < grouped.length; i++) {
+			ordered.addAll(grouped[i].values());
+		}
+		int objCount = (int) level.size();
+		
+		// Compress the chunks, then work out where they go
+		byte[][] data = new byte[ordered.size()][];
+		run(new CompressTask(level, ordered, data, 0, ordered.size()));
+		ArrayList<LevelChunk> chunks = new ArrayList<LevelChunk>(ordered.size());
+		long offset = HEADER_SIZE + (long) ordered.size() * DIRECTORY_ENTRY_SIZE;
+		for (int i = 0; i < ordered.size(); i++) {
+			LevelChunk chunk = ordered.get(i).chunk;
+			chunk.count = ordered.get(i).size;
+			chunk.offset = offset;
+			chunk.length = data[i].length;
+			offset += data[i].length;
+			chunks.add(chunk);
+		}
+		
+		ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + chunks.size() * DIRECTORY_ENTRY_SIZE);
+		putHeader(out, objCount, level.levelSettings, chunks.size(), journalId);
+		for (LevelChunk chunk : chunks) {
+			putDirectoryEntry(out, chunk);
+		}
+		out.flip();
+		write(channel, out, 0);
+		run(new WriteTask(channel, chunks, data, 0, chunks.size()));
+	}
+	
+	/**
+	 * Puts the header of a file whose directory follows the header.
+	 */
+	private static void putHeader(ByteBuffer out, int objCount, LevelSettings levelSettings, int chunkCount,
+			int journalId) {
+		out.put((byte) 'L').put((byte) 'V').put((byte) '2');
+		out.put((byte) HEADER_SIZE);
+		out.putInt(objCount);
+		out.putInt(levelSettings.width);
+		out.putInt(levelSettings.height);
+		out.putInt(levelSettings.tileSize);
+		out.putInt(CHUNK_TILES);
+		out.putInt(chunkCount);
+		out.putLong(HEADER_SIZE);
+		out.putInt(journalId);
+		out.putLong(0);
+	}
+	
+	/**
+	 * Writes new versions of some chunks without rewriting the rest of the
+	 * file. The chunks are appended to the file, followed by the whole
+	 * directory, and the header is pointed at the new directory last. Until
+	 * then the old header and directory are still whole, so the file can be
+	 * read even if writing stops half way. The space of the old versions of
+	 * the chunks and of the old directory is not reused, but it is counted in
+	 * the header so the file can be written whole again once too much of it
+	 * is unused.
+	 * 
+	 * @param channel
+	 * @param directory every chunk of the file by its key, which is updated
+	 * @param chunks the chunks to write, with new LevelChunk entries
+	 * @param objects the objects of each chunk
+	 * @param orders the draw order of each object in its layer, which has to
+	 *            fit in with the orders of the chunks that are not written
+	 * @return the number of unused bytes in the file
+	 * @throws IOException
+	 */
+	long writeChunks(FileChannel channel, Map<Long, LevelChunk> directory, ArrayList<LevelChunk> chunks,
+			ArrayList<GameObject[]> objects, ArrayList<int[]> orders) throws IOException {
+		return writeChunks(channel, directory, chunks, objects, orders,
+				read(channel, 0, FIRST_HEADER_SIZE).getInt(36));
+	}
+	
+	/**
+	 * Writes new versions of some chunks to the file and marks the file as
+	 * holding the given journal, in the same write as the new directory.
+	 */
+	long writeChunks(FileChannel channel, Map<Long, LevelChunk> directory, ArrayList<LevelChunk> chunks,
+			ArrayList<GameObject[]> objects, ArrayList<int[]> orders, int journalId) throws IOException {
+		ByteBuffer header = read(channel, 0, read(channel, 3, 1).get(0));
+		// The old directory is no longer used once the new one is written.
+		long unused = getUnusedBytes(channel, header, directory) + (long) directory.size() * DIRECTORY_ENTRY_SIZE;
+		long end = channel.size();
+		Deflater deflater = new Deflater();
+		try {
+			for (int i = 0; i < chunks.size(); i++) {
+				LevelChunk chunk = chunks.get(i);
+				GameObject[] chunkObjects = objects.get(i);
+				Long key = key(chunk.layer, chunk.x, chunk.y);
+				LevelChunk old = directory.get(key);
+				if (old != null) {
+					unused += old.length;
+				}
+				if (chunkObjects.length == 0) {
+					directory.remove(key);
+					continue;
+				}
+				// The chunk is written as a level with one layer.
+				LevelSnapshot snapshot = LevelSnapshot.of(null, chunkObjects);
+				ChunkObjects grouped = new ChunkObjects(new LevelChunk(0, chunk.x, chunk.y));
+				for (int j = 0; j < chunkObjects.length; j++) {
+					grouped.add(j);
+				}
+				byte[] compressed = compress(snapshot, grouped, orders.get(i), deflater);
+				chunk.count = chunkObjects.length;
+				chunk.offset = end;
+				chunk.length = compressed.length;
+				write(channel, ByteBuffer.wrap(compressed), end);
+				end += compressed.length;
+				directory.put(key, chunk);
+			}
+		} finally {
+			deflater.end();
+		}
+		
+		TreeMap<Long, LevelChunk> sorted = new TreeMap<Long, LevelChunk>(directory);
+		ByteBuffer out = ByteBuffer.allocate(sorted.size() * DIRECTORY_ENTRY_SIZE);
+		int objCount = 0;
+		for (LevelChunk chunk : sorted.values()) {
+			putDirectoryEntry(out, chunk);
+			objCount += chunk.count;
+		}
+		out.flip();
+		write(channel, out, end);
+		channel.force(false);
+		
+		header.putInt(4, objCount);
+		header.putInt(24, sorted.size());
+		header.putLong(28, end);
+		header.putInt(36, journalId);
+		if (header.limit() >= HEADER_SIZE) {
+			header.putLong(40, unused);
+		}
+		write(channel, header, 0);
+		channel.force(false);
+		return unused;
+	}
+	
+	/**
+	 * Returns the number of bytes of a file that are not in the header, the
+	 * directory or a chunk. Files with the old header do not keep count of
+	 * them, so for them the bytes that are used are subtracted from the size.
+	 */
+	private static long getUnusedBytes(FileChannel channel, ByteBuffer header, Map<Long, LevelChunk> directory)
+			throws IOException {
+		if (header.limit() >= HEADER_SIZE) {
+			return header.getLong(40);
+		}
+		long used = header.limit() + (long) directory.size() * DIRECTORY_ENTRY_SIZE;
+		for (LevelChunk chunk : directory.values()) {
+			used += chunk.length;
+		}
+		return channel.size() - used;
+	}
+	
+	/**
+	 * Writes a file again into another file, leaving out the bytes that are
+	 * no longer used. The chunks are copied as they are, so nothing has to be
+	 * compressed again, and the new file has the current header.
+	 * 
+	 * @param channel
+	 * @param directory every chunk of the file by its key
+	 * @param out
+	 * @return the chunks of the new file by their key
+	 * @throws IOException
+	 */
+	HashMap<Long, LevelChunk> rewrite(FileChannel channel, Map<Long, LevelChunk> directory, FileChannel out)
+			throws IOException {
+		TreeMap<Long, LevelChunk> sorted = new TreeMap<Long, LevelChunk>(directory);
+		HashMap<Long, LevelChunk> copies = new HashMap<Long, LevelChunk>();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + sorted.size() * DIRECTORY_ENTRY_SIZE);
+		header.position(HEADER_SIZE);
+		long offset = header.capacity();
+		int objCount = 0;
+		for (Map.Entry<Long, LevelChunk> e : sorted.entrySet()) {
+			LevelChunk chunk = e.getValue();
+			LevelChunk copy = new LevelChunk(chunk.layer, chunk.x, chunk.y);
+			copy.count = chunk.count;
+			copy.offset = offset;
+			copy.length = chunk.length;
+			write(out, read(channel, chunk.offset, chunk.length), offset);
+			putDirectoryEntry(header, copy);
+			copies.put(e.getKey(), copy);
+			offset += chunk.length;
+			objCount += chunk.count;
+		}
+		header.position(0);
+		putHeader(header, objCount, readSettings(channel), sorted.size(), read(channel, 0, FIRST_HEADER_SIZE).getInt(36));
+		header.position(0);
+		write(out, header, 0);
+		return copies;
+	}
+	
+	static void putDirectoryEntry(ByteBuffer out, LevelChunk chunk) {
+		out.put((byte) chunk.layer);
+		out.putInt(chunk.x);
+		out.putInt(chunk.y);
+		out.putInt(chunk.count);
+		out.putLong(chunk.offset);
+		out.putInt(chunk.length);
+	}
+	
+	/**
+	 * Compresses a chunk. The draw order of each object is its index in the
+	 * layer of the snapshot, unless the orders are given.
+	 */
+	private byte[] compress(LevelSnapshot level, ChunkObjects chunk, int[] orders, Deflater deflater) {
+		int layer = chunk.chunk.layer;
+		int count = chunk.size;
+		byte[] raw = new byte[count * RECORD_SIZE];
+		for (int i = 0; i < count; i++) {
+			int j = chunk.indices[i];
+			short spriteId = level.spriteId[layer][j];
+			putInt(raw, count, 0, i, orders != null ? orders[j] : j);
+			putInt(raw, count, 1, i, Float.floatToRawIntBits(level.x[layer][j]));
+			putInt(raw, count, 2, i, Float.floatToRawIntBits(level.y[layer][j]));
+			putInt(raw, count, 3, i, Float.floatToRawIntBits(level.width[layer][j]));
+			putInt(raw, count, 4, i, Float.floatToRawIntBits(level.height[layer][j]));
+			putInt(raw, count, 5, i, Float.floatToRawIntBits(level.scale[layer][j]));
+			raw[count * 24 + i] = (byte) (spriteId < 0 ? -1 : spriteKeys[spriteId]);
+		}
+		
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(count * RECORD_SIZE / 4 + 64);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			compressed.write(buffer, 0, n);
+		}
+		return compressed.toByteArray();
+	}
+	
+	/**
+	 * Stores a four byte field of an object in an uncompressed chunk. The
+	 * field is the index of the column, and every byte of the value goes in
+	 * its own run of count bytes, most significant byte first.
+	 */
+	private static void putInt(byte[] raw, int count, int field, int i, int value) {
+		int p = field * 4 * count + i;
+		raw[p] = (byte) (value >>> 24);
+		raw[p + count] = (byte) (value >>> 16);
+		raw[p + count * 2] = (byte) (value >>> 8);
+		raw[p + count * 3] = (byte) value;
+	}
+	
+	private static int getInt(byte[] raw, int count, int field, int i) {
+		int p = field * 4 * count + i;
+		return (raw[p] & 0xFF) << 24 | (raw[p + count] & 0xFF) << 16 | (raw[p + count * 2] & 0xFF) << 8
+				| (raw[p + count * 3] & 0xFF);
+	}
+	
+	static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		while (bytes.hasRemaining()) {
+			if (channel.read(bytes, position + bytes.position()) < 0) {
+				throw new IOException("Unexpected end of level file");
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+	
+	static void write(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+		while (bytes.hasRemaining()) {
+			channel.write(bytes, position + bytes.position());
+		}
+	}
+	
+	/**
+	 * Returns the key of a chunk. The keys sort by layer, then by row and
+	 * column.
+	 */
+	static Long key(int layer, int cx, int cy) {
+		return ((long) layer << 56) | (((long) cy + (1 << 27)) << 28) | ((long) cx + (1 << 27));
+	}
+	
+	/**
+	 * Runs a task on the common fork-join pool, or all of it on the calling
+	 * thread if the level is not read and written in parallel.
+	 */
+	private void run(ChunkTask task) throws IOException {
+		try {
+			if (parallel) {
+				ForkJoinPool.commonPool().invoke(task);
+			} else {
+				task.process();
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Runs jobs that are independent of each other, in parallel if the level
+	 * is read and written in parallel.
+	 */
+	private void runAll(ArrayList<Runnable> jobs) {
+		if (!parallel) {
+			for (int i = 0; i < jobs.size(); i++) {
+				jobs.get(i).run();
+			}
+			return;
+		}
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(jobs.size());
+		for (int i = 0; i < jobs.size(); i++) {
+			tasks.add(ForkJoinTask.adapt(jobs.get(i)));
+		}
+		ForkJoinTask.invokeAll(tasks);
+	}
+	
+	/**
+	 * Fork-join task over a range of chunks. The range is split in half until
+	 * it is small enough to be processed by one task.
+	 */
+	private abstract class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		protected int from;
+		protected int to;
+		
+		protected ChunkTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNKS_PER_TASK) {
+				try {
+					process();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(split(from, middle), split(middle, to));
+			}
+		}
+		
+		protected abstract ChunkTask split(int from, int to);
+		
+		/**
+		 * Processes every chunk of the range on the current thread.
+		 */
+		protected abstract void process() throws IOException;
+	}
+	
+	/**
+	 * Decompresses chunks. Every task has its own inflater.
+	 */
+	private class ReadTask extends ChunkTask {
+		private static final long serialVersionUID = 1L;
+		
+		private FileChannel channel;
+		private ArrayList<LevelChunk> chunks;
+		private GameObject[][] objects;
+		private int[][] orders;
+		
+		private ReadTask(FileChannel channel, ArrayList<LevelChunk> chunks, GameObject[][] objects, int[][] orders,
+				int from, int to) {
+			super(from, to);
+			this.channel = channel;
+			this.chunks = chunks;
+			this.objects = objects;
+			this.orders = orders;
+		}
+		
+		@Override
+		protected ChunkTask split(int from, int to) {
+			return new ReadTask(channel, chunks, objects, orders, from, to);
+		}
+		
+		@Override
+		protected void process() throws IOException {
+			Inflater inflater = new Inflater();
+			try {
+				for (int i = from; i < to; i++) {
+					orders[i] = new int[chunks.get(i).count];
+					objects[i] = readChunk(channel, chunks.get(i), orders[i], inflater);
+				}
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+	
+	/**
+	 * Compresses chunks. Every task has its own deflater.
+	 */
+	private class CompressTask extends ChunkTask {
+		private static final long serialVersionUID = 1L;
+		
+		private LevelSnapshot level;
+		private ArrayList<ChunkObjects> chunks;
+		private byte[][] data;
+		
+		private CompressTask(LevelSnapshot level, ArrayList<ChunkObjects> chunks, byte[][] data, int from, int to) {
+			super(from, to);
+			this.level = level;
+			this.chunks = chunks;
+			this.data = data;
+		}
+		
+		@Override
+		protected ChunkTask split(int from, int to) {
+			return new CompressTask(level, chunks, data, from, to);
+		}
+		
+		@Override
+		protected void process() {
+			Deflater deflater = new Deflater();
+			try {
+				for (int i = from; i < to; i++) {
+					data[i] = compress(level, chunks.get(i), null, deflater);
+				}
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+	
+	/**
+	 * Writes compressed chunks where they go in the file. The chunks of a
+	 * task are next to each other in the file, so the tasks fill separate
+	 * parts of it.
+	 */
+	private class WriteTask extends ChunkTask {
+		private static final long serialVersionUID = 1L;
+		
+		private FileChannel channel;
+		private ArrayList<LevelChunk> chunks;
+		private byte[][] data;
+		
+		private WriteTask(FileChannel channel, ArrayList<LevelChunk> chunks, byte[][] data, int from, int to) {
+			super(from, to);
+			this.channel = channel;
+			this.chunks = chunks;
+			this.data = data;
+		}
+		
+		@Override
+		protected ChunkTask split(int from, int to) {
+			return new WriteTask(channel, chunks, data, from, to);
+		}
+		
+		@Override
+		protected void process() throws IOException {
+			for (int i = from; i < to; i++) {
+				write(channel, ByteBuffer.wrap(data[i]), chunks.get(i).offset);
+			}
+		}
+	}
+	
+	/**
+	 * The objects of a chunk that is being written, as their indexes in the
+	 * layer of the snapshot.
+	 */
+	private static class ChunkObjects {
+		private LevelChunk chunk;
+		private int[] indices = new int[16];
+		private int size = 0;
+		
+		private ChunkObjects(LevelChunk chunk) {
+			this.chunk = chunk;
+		}
+		
+		private void add(int index) {
+			if (size == indices.length) {
+				indices = Arrays.copyOf(indices, size * 2);
+			}
+			indices[size++] = index;
+		}
+	}
+}
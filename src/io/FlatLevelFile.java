@@ -0,0 +1,392 @@
+package io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.Pair;
+
+/**
+ * Reads and writes the flat level format, version 1 of the level file and
+ * the format the game reads.
+ *
+ * The file starts with a 16 byte header: "LVL", the header size, the number
+ * of objects and the width and height in tiles. It is followed by a 22 byte
+ * record for every object: layer (byte), x, y, width, height and scale
+ * (floats) and type (byte). The objects of each layer are in the order they
+ * are drawn in.
+ *
+ * Every record has the same size, so the records are split into blocks that
+ * are read and written in parallel by fork-join tasks. A block is written at
+ * its own place in the file, and the file is the same, byte for byte, as
+ * when it is written on one thread.
+ *
+ * @author Jesper Bergstrom
+ * @name FlatLevelFile.java
+ * @version 0.00.00
+ */
+class FlatLevelFile {
+
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_SIZE = 22;
+	// Largest region that can be mapped at once, rounded down to whole records.
+	private static final long MAX_REGION_SIZE = (Integer.MAX_VALUE / RECORD_SIZE) * (long) RECORD_SIZE;
+	// Records in a block, which a task reads or writes itself.
+	private static final int BLOCK_SIZE = 1 << 14;
+
+	private short[] spriteIds;
+	private int[] spriteKeys;
+	private boolean parallel = true;
+
+	FlatLevelFile(short[] spriteIds, int[] spriteKeys) {
+		this.spriteIds = spriteIds;
+		this.spriteKeys = spriteKeys;
+	}
+
+	/**
+	 * Sets if levels are read and written on several threads or only on the
+	 * calling thread.
+	 *
+	 * @param parallel
+	 */
+	void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	LevelSettings readSettings(FileChannel channel) throws IOException {
+		ByteBuffer header = ChunkedLevelFile.read(channel, 0, HEADER_SIZE);
+		return new LevelSettings(header.getInt(8), header.getInt(12), 32); // Temporary, also save tile size
+	}
+
+	/**
+	 * Reads a whole level. The file is memory mapped and every field is read
+	 * with an absolute get, so no memory is allocated per field. The layers of
+	 * the records are read in parallel by block, and then the layers are
+	 * filled in parallel, one task per layer, straight from the records.
+	 *
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	Level read(FileChannel channel) throws IOException {
+		LevelSettings ls = readSettings(channel);
+		int offset = ChunkedLevelFile.read(channel, 3, 1).get(0);
+		ArrayList<MappedByteBuffer> regions = mapRecords(channel, offset);
+		long total = (channel.size() - offset) / RECORD_SIZE;
+		int blocks = (int) ((total + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		byte[][] layers = new byte[blocks][];
+		run(new ReadTask(regions, total, layers, 0, blocks));
+
+		Layer[] levelMap = new Layer[LevelFileManager.LAYER_COUNT];
+		// Records of a layer that does not exist are an error, as they would
+		// be when read one at a time.
+		for (int b = 0; b < blocks; b++) {
+			for (int j = 0; j < layers[b].length; j++) {
+				if (layers[b][j] < 0 || layers[b][j] >= LevelFileManager.LAYER_COUNT) {
+					throw new IOException("Object in layer " + layers[b][j] + " of level file");
+				}
+			}
+		}
+		ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+		for (int i = 0; i < levelMap.length; i++) {
+			final byte layer = (byte) i;
+			jobs.add(() -> {
+				// Count the objects first so the layer can be presized
+				int size = 0;
+				for (int b = 0; b < blocks; b++) {
+					for (int j = 0; j < layers[b].length; j++) {
+						if (layers[b][j] == layer) {
+							size++;
+						}
+					}
+				}
+				Layer l = new Layer(ls.tileSize, size);
+				for (int b = 0; b < blocks; b++) {
+					for (int j = 0; j < layers[b].length; j++) {
+						if (layers[b][j] == layer) {
+							addRecord(l, regions, (long) b * BLOCK_SIZE + j);
+						}
+					}
+				}
+				levelMap[layer] = l;
+			});
+		}
+		runAll(jobs);
+
+		ArrayList<Layer> layerList = new ArrayList<Layer>(levelMap.length);
+		for (int i = 0; i < levelMap.length; i++) {
+			layerList.add(levelMap[i]);
+		}
+		return new Level(ls, layerList);
+	}
+
+	/**
+	 * Reads the objects of a level and hands them to the listener in batches
+	 * in the order they are in the file. Reading stops early if the listener
+	 * returns false.
+	 */
+	void readObjects(FileChannel channel, int batchSize, LevelStreamListener listener) throws IOException {
+		int offset = ChunkedLevelFile.read(channel, 3, 1).get(0);
+		ArrayList<MappedByteBuffer> regions = mapRecords(channel, offset);
+		long total = (channel.size() - offset) / RECORD_SIZE;
+		long read = 0;
+
+		ArrayList<Pair<GameObject, Integer>> batch = new ArrayList<Pair<GameObject, Integer>>(batchSize);
+		for (int r = 0; r < regions.size(); r++) {
+			MappedByteBuffer bytes = regions.get(r);
+			for (int i = 0; i < bytes.limit(); i += RECORD_SIZE) {
+				int layer = bytes.get(i);
+				batch.add(new Pair<GameObject, Integer>(readObject(bytes, i), layer));
+				read++;
+				if (batch.size() == batchSize) {
+					if (!listener.batchRead(batch, read, total)) {
+						return;
+					}
+					batch = new ArrayList<Pair<GameObject, Integer>>(batchSize);
+				}
+			}
+		}
+		if (!batch.isEmpty()) {
+			listener.batchRead(batch, read, total);
+		}
+	}
+
+	/**
+	 * Maps the records of a level file. A buffer can only map 2 GB, so a
+	 * bigger file is mapped as several regions of whole records.
+	 */
+	private ArrayList<MappedByteBuffer> mapRecords(FileChannel channel, int offset) throws IOException {
+		ArrayList<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+		long recordsSize = (channel.size() - offset) / RECORD_SIZE * RECORD_SIZE;
+		for (long start = 0; start < recordsSize; start += MAX_REGION_SIZE) {
+			long length = Math.min(MAX_REGION_SIZE, recordsSize - start);
+			regions.add(channel.map(FileChannel.MapMode.READ_ONLY, offset + start, length));
+		}
+		return regions;
+	}
+
+	/**
+	 * Adds the object of a record to a layer without creating a GameObject.
+	 */
+	private void addRecord(Layer layer, ArrayList<MappedByteBuffer> regions, long record) {
+		long recordsPerRegion = MAX_REGION_SIZE / RECORD_SIZE;
+		ByteBuffer bytes = regions.get((int) (record / recordsPerRegion));
+		int i = (int) (record % recordsPerRegion) * RECORD_SIZE;
+		layer.add(bytes.getFloat(i + 1), bytes.getFloat(i + 5), bytes.getFloat(i + 9), bytes.getFloat(i + 13),
+				bytes.getFloat(i + 17), spriteIds[bytes.get(i + 21) & 0xFF]);
+	}
+
+	private GameObject readObject(ByteBuffer bytes, int i) {
+		GameObject o = new GameObject();
+		o.setX(bytes.getFloat(i + 1));
+		o.setY(bytes.getFloat(i + 5));
+		o.setWidth(bytes.getFloat(i + 9));
+		o.setHeight(bytes.getFloat(i + 13));
+		o.setScale(bytes.getFloat(i + 17));
+		o.setSpriteId(spriteIds[bytes.get(i + 21) & 0xFF]);
+		return o;
+	}
+
+	/**
+	 * Writes a whole level. The header is written first and then every block
+	 * of records is encoded into a buffer of its own and written at its place
+	 * in the file.
+	 *
+	 * @param level
+	 * @param channel
+	 * @throws IOException
+	 */
+	void write(LevelSnapshot level, FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put((byte) 0x4C).put((byte) 0x56).put((byte) 0x4C);
+		header.put((byte) HEADER_SIZE);
+		header.putInt((int) level.size());
+		header.putInt(level.levelSettings.width);
+		header.putInt(level.levelSettings.height);
+		header.flip();
+		ChunkedLevelFile.write(channel, header, 0);
+
+		// Index of the first record of each layer
+		long[] layerStarts = new long[level.getLayerCount() + 1];
+		for (int i = 0; i < level.getLayerCount(); i++) {
+			layerStarts[i + 1] = layerStarts[i] + level.size(i);
+		}
+		int blocks = (int) ((level.size() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		run(new WriteTask(level, channel, layerStarts, 0, blocks));
+	}
+
+	private void run(BlockTask task) throws IOException {
+		try {
+			if (parallel) {
+				ForkJoinPool.commonPool().invoke(task);
+			} else {
+				task.process();
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Runs jobs that are independent of each other, in parallel if the level
+	 * is read and written in parallel.
+	 */
+	private void runAll(ArrayList<Runnable> jobs) {
+		if (!parallel) {
+			for (int i = 0; i < jobs.size(); i++) {
+				jobs.get(i).run();
+			}
+			return;
+		}
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(jobs.size());
+		for (int i = 0; i < jobs.size(); i++) {
+			tasks.add(ForkJoinTask.adapt(jobs.get(i)));
+		}
+		ForkJoinTask.invokeAll(tasks);
+	}
+
+	/**
+	 * Fork-join task over a range of blocks. The range is split in half until
+	 * it is one block.
+	 */
+	private abstract class BlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected int from;
+		protected int to;
+
+		protected BlockTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= 1) {
+				try {
+					process();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(split(from, middle), split(middle, to));
+			}
+		}
+
+		protected abstract BlockTask split(int from, int to);
+
+		/**
+		 * Processes every block of the range on the current thread.
+		 */
+		protected abstract void process() throws IOException;
+	}
+
+	/**
+	 * Reads the layer of every record of blocks of mapped records.
+	 */
+	private class ReadTask extends BlockTask {
+		private static final long serialVersionUID = 1L;
+
+		private ArrayList<MappedByteBuffer> regions;
+		private long total;
+		private byte[][] layers;
+
+		private ReadTask(ArrayList<MappedByteBuffer> regions, long total, byte[][] layers, int from, int to) {
+			super(from, to);
+			this.regions = regions;
+			this.total = total;
+			this.layers = layers;
+		}
+
+		@Override
+		protected BlockTask split(int from, int to) {
+			return new ReadTask(regions, total, layers, from, to);
+		}
+
+		@Override
+		protected void process() {
+			long recordsPerRegion = MAX_REGION_SIZE / RECORD_SIZE;
+			for (int b = from; b < to; b++) {
+				long start = (long) b * BLOCK_SIZE;
+				int count = (int) Math.min(BLOCK_SIZE, total - start);
+				byte[] blockLayers = new byte[count];
+				// A block can start in one region and end in the next.
+				int r = (int) (start / recordsPerRegion);
+				int p = (int) (start % recordsPerRegion) * RECORD_SIZE;
+				for (int j = 0; j < count; j++, p += RECORD_SIZE) {
+					if (p == regions.get(r).limit()) {
+						r++;
+						p = 0;
+					}
+					blockLayers[j] = regions.get(r).get(p);
+				}
+				layers[b] = blockLayers;
+			}
+		}
+	}
+
+	/**
+	 * Encodes blocks of records and writes each of them at its place in the
+	 * file.
+	 */
+	private class WriteTask extends BlockTask {
+		private static final long serialVersionUID = 1L;
+
+		private LevelSnapshot level;
+		private FileChannel channel;
+		private long[] layerStarts;
+
+		private WriteTask(LevelSnapshot level, FileChannel channel, long[] layerStarts, int from, int to) {
+			super(from, to);
+			this.level = level;
+			this.channel = channel;
+			this.layerStarts = layerStarts;
+		}
+
+		@Override
+		protected BlockTask split(int from, int to) {
+			return new WriteTask(level, channel, layerStarts, from, to);
+		}
+
+		@Override
+		protected void process() throws IOException {
+			long total = layerStarts[layerStarts.length - 1];
+			for (int b = from; b < to; b++) {
+				long start = (long) b * BLOCK_SIZE;
+				int count = (int) Math.min(BLOCK_SIZE, total - start);
+				ByteBuffer out = ByteBuffer.allocate(count * RECORD_SIZE);
+				// Find the layer and the index in it of the first record
+				int i = 0;
+				while (layerStarts[i + 1] <= start) {
+					i++;
+				}
+				int j = (int) (start - layerStarts[i]);
+				for (int k = 0; k < count; k++, j++) {
+					while (j == level.size(i)) {
+						i++;
+						j = 0;
+					}
+					short spriteId = level.spriteId[i][j];
+					out.put((byte) i); // Layer
+					out.putFloat(level.x[i][j]);
+					out.putFloat(level.y[i][j]);
+					out.putFloat(level.width[i][j]);
+					out.putFloat(level.height[i][j]);
+					out.putFloat(level.scale[i][j]);
+					out.put((byte) (spriteId < 0 ? -1 : spriteKeys[spriteId])); // Type
+				}
+				out.flip();
+				ChunkedLevelFile.write(channel, out, HEADER_SIZE + start * RECORD_SIZE);
+			}
+		}
+	}
+}
@@ -1,14 +1,14 @@
 package io;
 
-import editor.entities.GameObject;
+import editor.entities.Layer;
 import java.util.ArrayList;
 
 public class Level {
 	
 	public LevelSettings levelSettings;
-	public ArrayList<ArrayList<GameObject>> levelMap;
+	public ArrayList<Layer> levelMap;
 	
-	public Level(LevelSettings levelSettings, ArrayList<ArrayList<GameObject>> levelMap) {
+	public Level(LevelSettings levelSettings, ArrayList<Layer> levelMap) {
 		this.levelSettings = levelSettings;
 		this.levelMap = levelMap;
 	}
@@ -0,0 +1,28 @@
+package io;
+
+/**
+ * An entry in the chunk directory of a chunked level file. A chunk holds the
+ * objects of one layer whose top left corner is inside a square part of the
+ * level, compressed as one block.
+ * 
+ * @author Jesper Bergstrom
+ * @name LevelChunk.java
+ * @version 0.00.00
+ */
+public class LevelChunk {
+	
+	public int layer;
+	// Position of the chunk, counted in chunks.
+	public int x;
+	public int y;
+	public int count;
+	// Where the compressed objects are in the file.
+	public long offset;
+	public int length;
+	
+	public LevelChunk(int layer, int x, int y) {
+		this.layer = layer;
+		this.x = x;
+		this.y = y;
+	}
+}
@@ -1,158 +1,423 @@
 package io;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Scanner;
 
 import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.Pair;
+import editor.entities.SpriteRegistry;
 
 public class LevelFileManager {
 	
+	private static final int HEADER_SIZE = FlatLevelFile.HEADER_SIZE;
+	static final int LAYER_COUNT = 8;
+	// New levels with more objects than this are written in the chunked
+	// format unless a default format is set, since only chunked levels can
+	// be paged.
+	public static final long CHUNKED_LEVEL_SIZE = 500000;
+	
 	private Map<Integer, String> types;
+	private String[] typeNames;
+	private Map<String, Integer> keys;
+	// Type keys translated to sprite ids and back, so objects can be read and
+	// written without looking up their names.
+	private short[] spriteIds;
+	private int[] spriteKeys;
+	private FlatLevelFile flatFile;
+	private ChunkedLevelFile chunkedFile;
+	// The format of new level files, or null to pick it by the size of the
+	// level.
+	private LevelFormat defaultFormat;
 	
 	public LevelFileManager() {
 		types = new HashMap<Integer, String>();
+		typeNames = new String[256];
+		keys = new HashMap<String, Integer>();
 		File file = new File("types.cfg");
 		try {
 			Scanner scan = new Scanner(file);
 			while (scan.hasNext()) {
 				String str = scan.nextLine();
-				types.put(Integer.parseInt(str.split(" ")[0]), str.split(" ")[1]);
+				int key = Integer.parseInt(str.split(" ")[0]);
+				types.put(key, str.split(" ")[1]);
+				keys.put(str.split(" ")[1], key);
+				if (key >= 0 && key < typeNames.length) {
+					typeNames[key] = str.split(" ")[1];
+				}
 			}
 			scan.close();
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		}
+		
+		SpriteRegistry sprites = SpriteRegistry.getInstance();
+		spriteIds = new short[typeNames.length];
+		spriteKeys = new int[sprites.size()];
+		for (int i = 0; i < spriteKeys.length; i++) {
+			spriteKeys[i] = getKey(sprites.get(i).name);
+		}
+		for (int i = 0; i < spriteIds.length; i++) {
+			spriteIds[i] = (short) (typeNames[i] == null ? -1 : sprites.getId(typeNames[i]));
+		}
+		flatFile = new FlatLevelFile(spriteIds, spriteKeys);
+		chunkedFile = new ChunkedLevelFile(spriteIds, spriteKeys);
+	}
+	
+	/**
+	 * Sets if levels are read and written on several threads, which is the
+	 * default, or only on the calling thread. The files are the same either
+	 * way.
+	 * 
+	 * @param parallel
+	 */
+	public void setParallel(boolean parallel) {
+		flatFile.setParallel(parallel);
+		chunkedFile.setParallel(parallel);
 	}
 	
+	/**
+	 * Sets the format that new level files are written in. By default new
+	 * levels are written in the flat format, which is the only format the
+	 * game can read, and only levels with more than
+	 * {@link #CHUNKED_LEVEL_SIZE} objects are chunked. Files that already
+	 * exist are written in the format they are in.
+	 * 
+	 * @param defaultFormat the format, or null to pick it by size.
+	 */
+	public void setDefaultFormat(LevelFormat defaultFormat) {
+		this.defaultFormat = defaultFormat;
+	}
+	
+	/**
+	 * Returns the format of a level file.
+	 * 
+	 * @param file
+	 * @return the format, or null if the file does not exist or could not be
+	 *         read.
+	 */
+	public LevelFormat getFormat(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (ChunkedLevelFile.isChunked(ChunkedLevelFile.read(channel, 0, Math.min((int) channel.size(), 3)))) {
+				return LevelFormat.CHUNKED;
+			}
+			return LevelFormat.FLAT;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads a level from a file. Both the chunked format and the old format
+	 * with a flat array of records can be read. Files in the old format are
+	 * memory mapped and every field is read with an absolute get, so no memory
+	 * is allocated per field. Edits in the journal of the file that do not
+	 * match the level are skipped, {@link #readObjects} counts them.
+	 * 
+	 * @param file
+	 * @return the level, or null if the file could not be read.
+	 */
 	public Level loadFile(File file) {
-		try {
-			Path path = file.toPath();
-			byte[] bytes =  Files.readAllBytes(path);
-			
-			// Read header
-			System.out.println((char) bytes[0] + "" + (char) bytes[1] + "" + (char) bytes[2]);
-			int offset = bytes[3];
-			int objCount = bytesToInt(new byte[] {bytes[4], bytes[5], bytes[6], bytes[7]});
-			System.out.println(objCount);
-			
-			// Read width and hight of the level in tiles
-			int width = bytesToInt(new byte[] {bytes[8], bytes[9], bytes[10], bytes[11]});
-			int height = bytesToInt(new byte[] {bytes[12], bytes[13], bytes[14], bytes[15]});
-			LevelSettings ls = new LevelSettings(width, height, 32); // Temporary, also save tile size
-			
-			// Init level map
-			ArrayList<ArrayList<GameObject>> levelMap = new ArrayList<ArrayList<GameObject>>();
-			for (int i = 0; i < 8; i++) {
-				levelMap.add(new ArrayList<GameObject>());
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, HEADER_SIZE));
+			if (ChunkedLevelFile.isChunked(header)) {
+				Level level = chunkedFile.read(channel);
+				LevelJournal.replay(file, level, spriteIds);
+				return level;
 			}
 			
-			// Read all objects
-			for (int i = offset; i < bytes.length; i+=22) {
-				GameObject o = new GameObject();
-				int layer = bytes[i];
-				o.x = bytesToFloat(new byte[] {bytes[i + 1], bytes[i + 2], bytes[i + 3], bytes[i + 4]});
-				o.y = bytesToFloat(new byte[] {bytes[i + 5], bytes[i + 6], bytes[i + 7], bytes[i + 8]});
-				o.width = bytesToFloat(new byte[] {bytes[i + 9], bytes[i + 10], bytes[i + 11], bytes[i + 12]});
-				o.height = bytesToFloat(new byte[] {bytes[i + 13], bytes[i + 14], bytes[i + 15], bytes[i + 16]});
-				o.scale = bytesToFloat(new byte[] {bytes[i + 17], bytes[i + 18], bytes[i + 19], bytes[i + 20]});
-				o.setObjectName(types.get((int) bytes[i + 21]));
-				o.imageURL = "res/sprites/" + o.getObjectName() + ".png";
-				levelMap.get(layer).add(o);
+			return flatFile.read(channel);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads only the header of a level file.
+	 * 
+	 * @param file
+	 * @return the settings of the level, or null if the file could not be read.
+	 */
+	public LevelSettings readSettings(File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_SIZE));
+			if (ChunkedLevelFile.isChunked(header)) {
+				return chunkedFile.readSettings(channel);
 			}
-			
-			Level level = new Level(ls, levelMap);
-			return level;
+			return flatFile.readSettings(channel);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return null;
 	}
 	
-	public void writeFile(Level level, String filePath) {
-		ArrayList<ArrayList<GameObject>> levelMap = level.levelMap;
-		try {
-			FileOutputStream fos = new FileOutputStream(filePath);
-			BufferedOutputStream out = new BufferedOutputStream(fos);
-			
-			// Count objects
-			int objCount = 0;
-			for (int i = 0; i < levelMap.size(); i++) {
-				objCount += levelMap.get(i).size();
+	/**
+	 * Reads the number of objects of a level from the header of its file,
+	 * without reading the objects. Edits in a journal of the file are not
+	 * counted.
+	 * 
+	 * @param file
+	 * @return the number of objects, or -1 if the file could not be read.
+	 */
+	public long readObjectCount(File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE) {
+				return -1;
 			}
-			
-			// Header
-			byte[] signature = { 0x4C, 0x56, 0x4C };
-			byte offset = 16;
-			out.write(signature);
-			out.write(offset);
-			out.write(intToBytes(objCount));
-			
-			// Width and Height
-			byte[] width = intToBytes(level.levelSettings.width);
-			byte[] height = intToBytes(level.levelSettings.height);
-			out.write(width);
-			out.write(height);
-			
-			// Object array
-			for (int i = 0; i < levelMap.size(); i++) {
-				for (int j = 0; j < levelMap.get(i).size(); j++) {
-					GameObject o = levelMap.get(i).get(j);
-					out.write((byte) i); // Layer
-					out.write(floatToBytes((float) o.x));
-					out.write(floatToBytes((float) o.y));
-					out.write(floatToBytes((float) o.width));
-					out.write(floatToBytes((float) o.height));
-					out.write(floatToBytes((float) o.scale));
-					out.write(getKey(o.getObjectName())); // Type
+			return ChunkedLevelFile.read(channel, 0, HEADER_SIZE).getInt(4);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return -1;
+	}
+	
+	/**
+	 * Reads the objects of a level file and hands them to the listener in
+	 * batches, so a level can be shown while it is still being read. Each
+	 * object is paired with the index of its layer. Reading stops early if
+	 * the listener returns false.
+	 * 
+	 * @param file
+	 * @param batchSize
+	 * @param listener
+	 * @return the number of edits in the journal of the file that do not
+	 *         match the level and were skipped.
+	 * @throws IOException
+	 */
+	public int readObjects(File file, int batchSize, LevelStreamListener listener) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_SIZE));
+			if (ChunkedLevelFile.isChunked(header)) {
+				LevelJournal.recover(file);
+				if (LevelJournal.getJournalFile(file).exists()) {
+					// The journal can only be replayed onto the whole level.
+					Level level = chunkedFile.read(channel);
+					int unmatched = LevelJournal.replay(file, level, spriteIds);
+					readObjects(level, batchSize, listener);
+					return unmatched;
 				}
+				chunkedFile.readObjects(channel, batchSize, listener);
+				return 0;
 			}
-			
-			out.flush();
-			fos.close();			
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			flatFile.readObjects(channel, batchSize, listener);
+			return 0;
+		}
+	}
+	
+	/**
+	 * Hands the objects of a level that has been read whole to the listener
+	 * in batches. The objects are copied out of the layers of the level, so
+	 * they are not in a layer yet.
+	 */
+	private void readObjects(Level level, int batchSize, LevelStreamListener listener) {
+		LevelSnapshot snapshot = LevelSnapshot.of(level);
+		long total = snapshot.size();
+		long read = 0;
+		ArrayList<Pair<GameObject, Integer>> batch = new ArrayList<Pair<GameObject, Integer>>(batchSize);
+		for (int i = 0; i < snapshot.getLayerCount(); i++) {
+			for (int j = 0; j < snapshot.size(i); j++) {
+				GameObject o = new GameObject();
+				o.setX(snapshot.x[i][j]);
+				o.setY(snapshot.y[i][j]);
+				o.setWidth(snapshot.width[i][j]);
+				o.setHeight(snapshot.height[i][j]);
+				o.setScale(snapshot.scale[i][j]);
+				o.setSpriteId(snapshot.spriteId[i][j]);
+				batch.add(new Pair<GameObject, Integer>(o, i));
+				read++;
+				if (batch.size() == batchSize) {
+					if (!listener.batchRead(batch, read, total)) {
+						return;
+					}
+					batch = new ArrayList<Pair<GameObject, Integer>>(batchSize);
+				}
+			}
+		}
+		if (!batch.isEmpty()) {
+			listener.batchRead(batch, read, total);
+		}
+	}
+	
+	/**
+	 * Reads the chunk directory of a level file. Files in the old format have
+	 * no chunks, so the list is empty for them.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public ArrayList<LevelChunk> readDirectory(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (!ChunkedLevelFile.isChunked(ChunkedLevelFile.read(channel, 0, Math.min((int) channel.size(), 3)))) {
+				return new ArrayList<LevelChunk>();
+			}
+			return chunkedFile.readDirectory(channel);
+		}
+	}
+	
+	/**
+	 * Reads only the chunks of a level that touch the given rectangle, for
+	 * example the part of the level that is in view. Files in the old format
+	 * are read whole.
+	 * 
+	 * @param file
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return the level with the objects of the rectangle, or null if the file
+	 *         could not be read.
+	 */
+	public Level loadRegion(File file, double x, double y, double width, double height) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (!ChunkedLevelFile.isChunked(ChunkedLevelFile.read(channel, 0, Math.min((int) channel.size(), 3)))) {
+				return loadFile(file);
+			}
+			return chunkedFile.readRegion(channel, x, y, width, height);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return null;
 	}
 	
-	private int getKey(String value) {
-		for (Entry<Integer, String> entry : types.entrySet()) {
-	        if (entry.getValue().equals(value)) {
-	            return entry.getKey();
-	        }
-	    }
-	    return -1;
+	/**
+	 * Opens a chunked level file for reading and writing one chunk at a time.
+	 * 
+	 * A journal of the file is folded into it first, one chunk at a time.
+	 * 
+	 * @param file
+	 * @return the opened file, or null if the file is in the old format, has
+	 *         a journal that does not match it or could not be opened for
+	 *         writing.
+	 */
+	public PagedLevelFile openPaged(File file) {
+		FileChannel channel = null;
+		try {
+			LevelJournal.recover(file);
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (ChunkedLevelFile.isChunked(ChunkedLevelFile.read(channel, 0, Math.min((int) channel.size(), 3)))) {
+				PagedLevelFile paged = new PagedLevelFile(file, channel, chunkedFile);
+				try {
+					LevelJournal.fold(paged, spriteIds);
+				} catch (IOException e) {
+					paged.close();
+					throw e;
+				}
+				return paged;
+			}
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException closeException) {
+				}
+			}
+		}
+		return null;
 	}
 	
-	private byte[] intToBytes(int value) {
-	     return ByteBuffer.allocate(4).putInt(value).array();
+	/**
+	 * Opens the journal of a level file in the chunked format, so edits can be
+	 * saved by appending them to the journal. The journal file is created by
+	 * the first save.
+	 * 
+	 * @param file
+	 * @return the journal, or null if the file is in the old format or the
+	 *         journal could not be opened.
+	 */
+	public LevelJournal openJournal(File file) {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (!ChunkedLevelFile.isChunked(ChunkedLevelFile.read(channel, 0, Math.min((int) channel.size(), 3)))) {
+				return null;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		try {
+			return new LevelJournal(file, chunkedFile, spriteIds, spriteKeys);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
 	}
-
-	private int bytesToInt(byte[] bytes) {
-	     return ByteBuffer.wrap(bytes).getInt();
+	
+	/**
+	 * Writes a level to a file. A file that already exists is written in the
+	 * format it is in, so a level in the flat format that the game reads stays
+	 * in that format, and a new file is written in the default format. The
+	 * level is written to a temporary file first, which then replaces the
+	 * file in one step, so the file is never left partly written. A journal
+	 * of the file is out of date once the level has been written, so the
+	 * level file is marked as holding it and the journal is removed.
+	 * 
+	 * @param level
+	 * @param filePath
+	 */
+	public void writeFile(Level level, String filePath) {
+		writeFile(LevelSnapshot.of(level), filePath);
 	}
 	
-	private float bytesToFloat(byte[] bytes) {
-	    int intBits = 
-	      bytes[0] << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
-	    return Float.intBitsToFloat(intBits);  
+	/**
+	 * Writes a snapshot of a level to a file in the same way as a level. The
+	 * snapshot does not change while it is written, so this can be called on
+	 * any thread.
+	 * 
+	 * @param level
+	 * @param filePath
+	 */
+	public void writeFile(LevelSnapshot level, String filePath) {
+		File file = new File(filePath);
+		File journalFile = LevelJournal.getJournalFile(file);
+		File tmp = LevelJournal.getTempFile(file);
+		LevelFormat format = getFormat(file);
+		if (format == null) {
+			format = defaultFormat;
+		}
+		if (format == null) {
+			format = level.size() > CHUNKED_LEVEL_SIZE ? LevelFormat.CHUNKED : LevelFormat.FLAT;
+		}
+		try {
+			LevelJournal.recover(file);
+			int journalId = journalFile.exists() ? LevelJournal.readId(journalFile) : 0;
+			try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				if (format == LevelFormat.FLAT) {
+					flatFile.write(level, channel);
+				} else {
+					chunkedFile.write(level, channel, journalId);
+				}
+				channel.force(true);
+			}
+			LevelJournal.move(tmp, file);
+			Files.deleteIfExists(journalFile.toPath());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
-	private byte[] floatToBytes(float val) {
-	    int intBits =  Float.floatToIntBits(val);
-	    return new byte[] {
-	      (byte) (intBits >> 24), (byte) (intBits >> 16), (byte) (intBits >> 8), (byte) (intBits) };
+	private int getKey(String value) {
+		Integer key = keys.get(value);
+		if (key == null) {
+			return -1;
+		}
+		return key;
 	}
 }
@@ -0,0 +1,11 @@
+package io;
+
+/**
+ * The formats that a level file can be written in. FLAT is version 1, a
+ * flat array of records, which is the format the game reads. CHUNKED is
+ * version 2, see {@link ChunkedLevelFile}, which only the editor reads but
+ * which can be paged and saved in parts.
+ */
+public enum LevelFormat {
+	FLAT, CHUNKED
+}
@@ -0,0 +1,650 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+
+/**
+ * Write-ahead journal of the edits made to a level since it was last written
+ * whole. Saving only appends the edits to the journal, which is a file next
+ * to the level file, so the time it takes depends on how much was edited and
+ * not on the size of the level. When the journal has grown big enough it is
+ * folded into the level file on a background thread.
+ *
+ * The journal starts with a 16 byte header: "LVJ", the version and the id of
+ * the journal. Each save appends a block with the number of records, the
+ * records and a CRC32 of the two. A block that was not written whole is
+ * ignored and cut off when the journal is opened again.
+ *
+ * A record is an edit of one object: the kind of edit, the layer, the x, y,
+ * width, height and scale of the object, its type and, for moves, where it
+ * was moved to. Objects have no ids, so an object that is moved or removed
+ * is found again by its values. Objects with the same values can not be told
+ * apart, so it does not matter which of them is picked.
+ *
+ * A level file that the journal has been folded into holds the id of the
+ * journal, so a journal that was folded before the editor stopped is not
+ * replayed again. The journal file is only created by the first save that
+ * has edits in it, and is removed again once all of it has been folded.
+ *
+ * @author Jesper Bergstrom
+ * @name LevelJournal.java
+ * @version 0.00.00
+ */
+public class LevelJournal {
+
+	static final int HEADER_SIZE = 16;
+	static final int VERSION = 1;
+	private static final int RECORD_SIZE = 31;
+	// Kinds of records.
+	private static final byte REMOVE = 0;
+	private static final byte ADD = 1;
+	private static final byte MOVE = 2;
+	// The journal is folded once it is bigger than this part of the level
+	// file, but never while it is smaller than the minimum.
+	private static final int COMPACT_RATIO = 4;
+	private static final long MIN_COMPACT_SIZE = 1 << 20;
+
+	private static final Random ids = new Random();
+
+	private File levelFile;
+	private File journalFile;
+	private ChunkedLevelFile chunkedFile;
+	private short[] spriteIds;
+	private int[] spriteKeys;
+	private FileChannel channel;
+	private int id;
+	private long size;
+	// Records that have not been saved yet.
+	private ByteBuffer pending;
+	private int pendingCount = 0;
+	private Thread compaction;
+	// Set once the journal did not match the level, so it is not read again
+	// on every save only to fail.
+	private boolean diverged = false;
+
+	LevelJournal(File levelFile, ChunkedLevelFile chunkedFile, short[] spriteIds, int[] spriteKeys)
+			throws IOException {
+		this.levelFile = levelFile;
+		this.chunkedFile = chunkedFile;
+		this.spriteIds = spriteIds;
+		this.spriteKeys = spriteKeys;
+		journalFile = getJournalFile(levelFile);
+		pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+		recover(levelFile);
+		if (journalFile.exists()) {
+			channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			ByteBuffer journal = ChunkedLevelFile.read(channel, 0, (int) channel.size());
+			id = journal.getInt(4);
+			// Cut off a block that was not written whole.
+			size = validLength(journal);
+			if (size > HEADER_SIZE) {
+				channel.truncate(size);
+			} else {
+				// A journal without edits would only keep the level from
+				// being paged.
+				channel.close();
+				channel = null;
+				size = 0;
+				Files.delete(journalFile.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Creates the journal file with a new id.
+	 */
+	private void create() throws IOException {
+		id = newId(readFoldedId(levelFile));
+		File tmp = getTempFile(journalFile);
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ChunkedLevelFile.write(out, header(id), 0);
+			out.force(true);
+		}
+		move(tmp, journalFile);
+		channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		size = HEADER_SIZE;
+	}
+
+	public File getLevelFile() {
+		return levelFile;
+	}
+
+	/**
+	 * Returns the size of the journal file in bytes, or 0 if there is none.
+	 *
+	 * @return
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized boolean hasUnsavedEdits() {
+		return pendingCount > 0;
+	}
+
+	public synchronized void add(int layer, GameObject o) {
+		record(ADD, layer, o, o.getX(), o.getY(), 0, 0);
+	}
+
+	public synchronized void remove(int layer, GameObject o) {
+		record(REMOVE, layer, o, o.getX(), o.getY(), 0, 0);
+	}
+
+	/**
+	 * Records that the object was moved to where it is now.
+	 *
+	 * @param layer
+	 * @param o
+	 * @param oldX
+	 * @param oldY
+	 */
+	public synchronized void move(int layer, GameObject o, float oldX, float oldY) {
+		record(MOVE, layer, o, oldX, oldY, o.getX(), o.getY());
+	}
+
+	private void record(byte kind, int layer, GameObject o, float x, float y, float newX, float newY) {
+		if (pending.remaining() < RECORD_SIZE) {
+			ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+		pending.put(kind);
+		pending.put((byte) layer);
+		pending.putFloat(x);
+		pending.putFloat(y);
+		pending.putFloat(o.getWidth());
+		pending.putFloat(o.getHeight());
+		pending.putFloat(o.getScale());
+		pending.put((byte) (o.getSpriteId() < 0 ? -1 : spriteKeys[o.getSpriteId()]));
+		pending.putFloat(newX);
+		pending.putFloat(newY);
+		pendingCount++;
+	}
+
+	/**
+	 * Appends the edits that have been recorded since the last save to the
+	 * journal and waits until they are on the disk. The journal file is
+	 * created if there is none.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (pendingCount == 0) {
+			return;
+		}
+		if (channel == null) {
+			create();
+		}
+		ByteBuffer block = ByteBuffer.allocate(8 + pending.position());
+		block.putInt(pendingCount);
+		pending.flip();
+		block.put(pending);
+		CRC32 crc = new CRC32();
+		crc.update(block.array(), 0, block.position());
+		block.putInt((int) crc.getValue());
+		block.flip();
+		ChunkedLevelFile.write(channel, block, size);
+		channel.force(false);
+		size += block.limit();
+		pending.clear();
+		pendingCount = 0;
+	}
+
+	/**
+	 * Folds the journal into the level file on a background thread if it has
+	 * grown big compared to the level file. Nothing happens if the journal is
+	 * already being folded.
+	 */
+	public synchronized void compactIfNeeded() {
+		if (diverged || (compaction != null && compaction.isAlive())) {
+			return;
+		}
+		if (size < MIN_COMPACT_SIZE || size < levelFile.length() / COMPACT_RATIO) {
+			return;
+		}
+		compaction = new Thread(() -> {
+			try {
+				compact();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "Journal compaction");
+		compaction.setDaemon(true);
+		compaction.start();
+	}
+
+	/**
+	 * Folds the journal into the level file. The level file is read and the
+	 * journal replayed onto it, and the result is written to a temporary file
+	 * that replaces the level file. The edits that were saved meanwhile are
+	 * moved to a new journal, which replaces the old one, and if there are
+	 * none the journal is removed.
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		int foldedId;
+		ByteBuffer journal;
+		synchronized (this) {
+			if (channel == null) {
+				return;
+			}
+			foldedId = id;
+			journal = ChunkedLevelFile.read(channel, 0, (int) size);
+		}
+
+		Level level;
+		try (FileChannel in = FileChannel.open(levelFile.toPath(), StandardOpenOption.READ)) {
+			level = chunkedFile.read(in);
+		}
+		// A journal that does not match the level is kept as it is, so
+		// nothing more is lost by folding it.
+		int unmatched = replay(level, journal, spriteIds);
+		if (unmatched > 0) {
+			synchronized (this) {
+				diverged = true;
+			}
+			throw new IOException(unmatched + " edits in " + journalFile + " do not match the level, so it is not folded");
+		}
+		File tmpLevel = getTempFile(levelFile);
+		try (FileChannel out = FileChannel.open(tmpLevel.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			chunkedFile.write(LevelSnapshot.of(level), out, foldedId);
+			out.force(true);
+		}
+
+		synchronized (this) {
+			long tail = size - journal.limit();
+			if (tail == 0) {
+				// A journal that is left behind holds the id in the level
+				// file, so recover removes it.
+				move(tmpLevel, levelFile);
+				channel.close();
+				channel = null;
+				size = 0;
+				Files.delete(journalFile.toPath());
+				return;
+			}
+			// The new journal has to be whole before the level file is
+			// replaced, see recover.
+			int newId = newId(foldedId);
+			File tmpJournal = getTempFile(journalFile);
+			try (FileChannel out = FileChannel.open(tmpJournal.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ChunkedLevelFile.write(out, header(newId), 0);
+				ChunkedLevelFile.write(out, ChunkedLevelFile.read(channel, journal.limit(), (int) tail), HEADER_SIZE);
+				out.force(true);
+			}
+			move(tmpLevel, levelFile);
+			move(tmpJournal, journalFile);
+			channel.close();
+			channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			id = newId;
+			size = HEADER_SIZE + tail;
+		}
+	}
+
+	/**
+	 * Stops using the journal once it is no longer being folded. Edits that
+	 * have not been saved are dropped.
+	 */
+	public void close() {
+		Thread running;
+		synchronized (this) {
+			running = compaction;
+		}
+		if (running != null) {
+			try {
+				running.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Makes the journal of a level file consistent with it after the editor
+	 * stopped while folding the journal or writing the level. If the level
+	 * file holds the id of the journal, the journal has already been folded
+	 * into it. The edits that were saved while folding are then in the
+	 * temporary journal, which becomes the journal, and otherwise there is
+	 * nothing left in it. A temporary journal is not used in any other case.
+	 *
+	 * @param levelFile
+	 * @throws IOException
+	 */
+	static void recover(File levelFile) throws IOException {
+		File journalFile = getJournalFile(levelFile);
+		File tmpJournal = getTempFile(journalFile);
+		if (journalFile.exists() && readId(journalFile) == readFoldedId(levelFile)) {
+			if (tmpJournal.exists()) {
+				move(tmpJournal, journalFile);
+			} else {
+				Files.delete(journalFile.toPath());
+			}
+		} else if (tmpJournal.exists()) {
+			Files.delete(tmpJournal.toPath());
+		}
+	}
+
+	/**
+	 * Replays the journal of a level file, if it has one, onto the level that
+	 * was read from the file.
+	 *
+	 * @param levelFile
+	 * @param level
+	 * @param spriteIds
+	 * @return the number of edits that do not match the level and were
+	 *         skipped.
+	 * @throws IOException
+	 */
+	static int replay(File levelFile, Level level, short[] spriteIds) throws IOException {
+		recover(levelFile);
+		File journalFile = getJournalFile(levelFile);
+		if (!journalFile.exists()) {
+			return 0;
+		}
+		try (FileChannel in = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+			return replay(level, ChunkedLevelFile.read(in, 0, (int) in.size()), spriteIds);
+		}
+	}
+
+	/**
+	 * Folds the journal of a level file into the file without reading the
+	 * whole level. Only the chunks that the edits touch are read, the journal
+	 * is replayed onto them and they are written back together with the id
+	 * of the journal, which is then removed. A journal without edits is only
+	 * removed, and a journal that does not match the level is kept.
+	 *
+	 * @param file
+	 * @param spriteIds
+	 * @throws IOException
+	 */
+	static void fold(PagedLevelFile file, short[] spriteIds) throws IOException {
+		File journalFile = getJournalFile(file.getFile());
+		if (!journalFile.exists()) {
+			return;
+		}
+		ByteBuffer journal;
+		try (FileChannel in = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+			journal = ChunkedLevelFile.read(in, 0, (int) in.size());
+		}
+		long end = validLength(journal);
+		if (end > HEADER_SIZE) {
+			foldChunks(file, journal, end, spriteIds);
+		}
+		Files.delete(journalFile.toPath());
+	}
+
+	private static void foldChunks(PagedLevelFile file, ByteBuffer journal, long end, short[] spriteIds)
+			throws IOException {
+		double chunkSize = file.getChunkSize();
+		LinkedHashMap<Long, LevelChunk> touched = new LinkedHashMap<Long, LevelChunk>();
+		int layers = file.getLayerCount();
+		int p = HEADER_SIZE;
+		while (p < end) {
+			int count = journal.getInt(p);
+			p += 4;
+			for (int i = 0; i < count; i++, p += RECORD_SIZE) {
+				int layer = journal.get(p + 1);
+				layers = Math.max(layers, layer + 1);
+				touch(touched, layer, journal.getFloat(p + 2), journal.getFloat(p + 6), chunkSize);
+				if (journal.get(p) == MOVE) {
+					touch(touched, layer, journal.getFloat(p + 23), journal.getFloat(p + 27), chunkSize);
+				}
+			}
+			p += 4;
+		}
+
+		// Read the touched chunks into a level of their own, remembering the
+		// draw order of each object in the file.
+		ArrayList<Layer> levelMap = new ArrayList<Layer>();
+		for (int i = 0; i < layers; i++) {
+			levelMap.add(new Layer());
+		}
+		IdentityHashMap<GameObject, Integer> orders = new IdentityHashMap<GameObject, Integer>();
+		for (LevelChunk chunk : touched.values()) {
+			int[] chunkOrders = new int[file.getObjectCount(chunk.layer, chunk.x, chunk.y)];
+			GameObject[] objects = file.readChunk(chunk.layer, chunk.x, chunk.y, chunkOrders);
+			for (int i = 0; i < objects.length; i++) {
+				orders.put(objects[i], chunkOrders[i]);
+			}
+			levelMap.get(chunk.layer).addAll(Arrays.asList(objects));
+		}
+		int unmatched = replay(new Level(file.getLevelSettings(), levelMap), journal, spriteIds);
+		if (unmatched > 0) {
+			throw new IOException(unmatched + " edits in " + getJournalFile(file.getFile())
+					+ " do not match the level, so it is not folded");
+		}
+
+		// Every object is now in one of the touched chunks. Added objects go
+		// on top of their layer in the order they were added.
+		HashMap<Long, ArrayList<GameObject>> byChunk = new HashMap<Long, ArrayList<GameObject>>();
+		for (int layer = 0; layer < layers; layer++) {
+			Layer l = levelMap.get(layer);
+			for (int i = 0; i < l.size(); i++) {
+				GameObject o = l.get(i);
+				if (!orders.containsKey(o)) {
+					orders.put(o, file.nextOrder(layer));
+				}
+				Long key = ChunkedLevelFile.key(layer, (int) Math.floor(o.getX() / chunkSize),
+						(int) Math.floor(o.getY() / chunkSize));
+				byChunk.computeIfAbsent(key, k -> new ArrayList<GameObject>()).add(o);
+			}
+		}
+		ArrayList<LevelChunk> chunks = new ArrayList<LevelChunk>();
+		ArrayList<GameObject[]> objects = new ArrayList<GameObject[]>();
+		ArrayList<int[]> chunkOrders = new ArrayList<int[]>();
+		for (Map.Entry<Long, LevelChunk> e : touched.entrySet()) {
+			ArrayList<GameObject> list = byChunk.getOrDefault(e.getKey(), new ArrayList<GameObject>());
+			GameObject[] sorted = list.toArray(new GameObject[list.size()]);
+			Arrays.sort(sorted, Comparator.comparingInt(o -> orders.get(o)));
+			int[] sortedOrders = new int[sorted.length];
+			for (int i = 0; i < sorted.length; i++) {
+				sortedOrders[i] = orders.get(sorted[i]);
+			}
+			chunks.add(e.getValue());
+			objects.add(sorted);
+			chunkOrders.add(sortedOrders);
+		}
+		file.writeChunks(chunks, objects, chunkOrders, journal.getInt(4));
+	}
+
+	private static void touch(LinkedHashMap<Long, LevelChunk> touched, int layer, float x, float y,
+			double chunkSize) {
+		int cx = (int) Math.floor(x / chunkSize);
+		int cy = (int) Math.floor(y / chunkSize);
+		Long key = ChunkedLevelFile.key(layer, cx, cy);
+		if (!touched.containsKey(key)) {
+			touched.put(key, new LevelChunk(layer, cx, cy));
+		}
+	}
+
+	/**
+	 * Replays the whole blocks of a journal onto a level.
+	 *
+	 * @return the number of moves and removes whose object was not found
+	 */
+	private static int replay(Level level, ByteBuffer journal, short[] spriteIds) {
+		int unmatched = 0;
+		long end = validLength(journal);
+		ArrayList<Layer> levelMap = level.levelMap;
+		int p = HEADER_SIZE;
+		while (p < end) {
+			int count = journal.getInt(p);
+			p += 4;
+			for (int i = 0; i < count; i++, p += RECORD_SIZE) {
+				byte kind = journal.get(p);
+				Layer layer = levelMap.get(journal.get(p + 1));
+				GameObject o = new GameObject();
+				o.setX(journal.getFloat(p + 2));
+				o.setY(journal.getFloat(p + 6));
+				o.setWidth(journal.getFloat(p + 10));
+				o.setHeight(journal.getFloat(p + 14));
+				o.setScale(journal.getFloat(p + 18));
+				o.setSpriteId(spriteIds[journal.get(p + 22) & 0xFF]);
+				if (kind == ADD) {
+					layer.add(o);
+				} else {
+					GameObject placed = find(layer, o);
+					if (placed == null) {
+						unmatched++;
+						continue;
+					}
+					if (kind == REMOVE) {
+						layer.remove(placed);
+					} else if (kind == MOVE) {
+						layer.move(placed, journal.getFloat(p + 23), journal.getFloat(p + 27));
+					}
+				}
+			}
+			p += 4;
+		}
+		return unmatched;
+	}
+
+	/**
+	 * Finds an object in the layer with the same values as the given object.
+	 */
+	private static GameObject find(Layer layer, GameObject o) {
+		ArrayList<GameObject> candidates = layer.getObjectsIn(o.getX(), o.getY(), 0, 0);
+		for (int i = 0; i < candidates.size(); i++) {
+			GameObject c = candidates.get(i);
+			if (c.getX() == o.getX() && c.getY() == o.getY() && c.getWidth() == o.getWidth()
+					&& c.getHeight() == o.getHeight() && c.getScale() == o.getScale()
+					&& c.getSpriteId() == o.getSpriteId()) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the length of the journal up to the first block that is not
+	 * whole or whose checksum is wrong.
+	 */
+	private static long validLength(ByteBuffer journal) {
+		int p = HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		while (p + 4 <= journal.limit()) {
+			int count = journal.getInt(p);
+			long blockEnd = p + 4 + (long) count * RECORD_SIZE + 4;
+			if (count <= 0 || blockEnd > journal.limit()) {
+				break;
+			}
+			crc.reset();
+			crc.update(journal.array(), p, (int) blockEnd - 4 - p);
+			if ((int) crc.getValue() != journal.getInt((int) blockEnd - 4)) {
+				break;
+			}
+			p = (int) blockEnd;
+		}
+		return Math.min(p, journal.limit());
+	}
+
+	private static ByteBuffer header(int id) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put((byte) 'L').put((byte) 'V').put((byte) 'J');
+		header.put((byte) VERSION);
+		header.putInt(id);
+		header.flip();
+		return header;
+	}
+
+	static int readId(File journalFile) throws IOException {
+		try (FileChannel in = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+			if (in.size() < HEADER_SIZE) {
+				return 0;
+			}
+			return ChunkedLevelFile.read(in, 0, HEADER_SIZE).getInt(4);
+		}
+	}
+
+	/**
+	 * Returns the id of the journal that was folded into the level file, or
+	 * 0 if there is none.
+	 */
+	static int readFoldedId(File levelFile) throws IOException {
+		if (!levelFile.exists()) {
+			return 0;
+		}
+		try (FileChannel in = FileChannel.open(levelFile.toPath(), StandardOpenOption.READ)) {
+			if (in.size() < ChunkedLevelFile.FIRST_HEADER_SIZE) {
+				return 0;
+			}
+			ByteBuffer header = ChunkedLevelFile.read(in, 0, ChunkedLevelFile.FIRST_HEADER_SIZE);
+			if (!ChunkedLevelFile.isChunked(header)) {
+				return 0;
+			}
+			return header.getInt(36);
+		}
+	}
+
+	/**
+	 * Returns a new journal id that is neither 0 nor the given id.
+	 */
+	private static int newId(int usedId) {
+		int id = 0;
+		while (id == 0 || id == usedId) {
+			id = ids.nextInt();
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the journal file of a level file, which is next to it.
+	 *
+	 * @param levelFile
+	 * @return
+	 */
+	public static File getJournalFile(File levelFile) {
+		return new File(levelFile.getPath() + ".journal");
+	}
+
+	static File getTempFile(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Replaces a file with another file in one step, so the file is never
+	 * missing or only partly written.
+	 */
+	static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package io;
+
+import java.util.ArrayList;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+
+/**
+ * Copy of the objects of a level in plain arrays, one array per field and
+ * layer, in the order the objects are drawn in. Taking a snapshot only copies
+ * the columns of the layers, so it is quick enough to be done on the JavaFX thread, and the
+ * snapshot can then be written on another thread while the level is edited.
+ *
+ * @author Jesper Bergstrom
+ * @name LevelSnapshot.java
+ * @version 0.00.00
+ */
+public class LevelSnapshot {
+
+	public LevelSettings levelSettings;
+	public float[][] x;
+	public float[][] y;
+	public float[][] width;
+	public float[][] height;
+	public float[][] scale;
+	public short[][] spriteId;
+
+	private LevelSnapshot(LevelSettings levelSettings, int layerCount) {
+		this.levelSettings = levelSettings;
+		x = new float[layerCount][];
+		y = new float[layerCount][];
+		width = new float[layerCount][];
+		height = new float[layerCount][];
+		scale = new float[layerCount][];
+		spriteId = new short[layerCount][];
+	}
+
+	public static LevelSnapshot of(Level level) {
+		ArrayList<Layer> levelMap = level.levelMap;
+		LevelSnapshot snapshot = new LevelSnapshot(level.levelSettings, levelMap.size());
+		for (int i = 0; i < levelMap.size(); i++) {
+			Layer layer = levelMap.get(i);
+			snapshot.setLayer(i, layer.size());
+			layer.copyTo(snapshot.x[i], snapshot.y[i], snapshot.width[i], snapshot.height[i], snapshot.scale[i],
+					snapshot.spriteId[i]);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Creates a snapshot with one layer that holds the given objects.
+	 */
+	static LevelSnapshot of(LevelSettings levelSettings, GameObject[] objects) {
+		LevelSnapshot snapshot = new LevelSnapshot(levelSettings, 1);
+		snapshot.setLayer(0, objects.length);
+		for (int j = 0; j < objects.length; j++) {
+			snapshot.set(0, j, objects[j]);
+		}
+		return snapshot;
+	}
+
+	public int getLayerCount() {
+		return x.length;
+	}
+
+	public int size(int layer) {
+		return x[layer].length;
+	}
+
+	/**
+	 * Returns the number of objects in every layer together.
+	 *
+	 * @return
+	 */
+	public long size() {
+		long size = 0;
+		for (int i = 0; i < x.length; i++) {
+			size += x[i].length;
+		}
+		return size;
+	}
+
+	private void setLayer(int layer, int size) {
+		x[layer] = new float[size];
+		y[layer] = new float[size];
+		width[layer] = new float[size];
+		height[layer] = new float[size];
+		scale[layer] = new float[size];
+		spriteId[layer] = new short[size];
+	}
+
+	private void set(int layer, int i, GameObject o) {
+		x[layer][i] = o.getX();
+		y[layer][i] = o.getY();
+		width[layer][i] = o.getWidth();
+		height[layer][i] = o.getHeight();
+		scale[layer][i] = o.getScale();
+		spriteId[layer][i] = o.getSpriteId();
+	}
+}
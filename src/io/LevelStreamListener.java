@@ -0,0 +1,27 @@
+package io;
+
+import java.util.ArrayList;
+
+import editor.entities.GameObject;
+import editor.entities.Pair;
+
+/**
+ * Receives the objects of a level file while it is being read.
+ * 
+ * @author Jesper Bergstrom
+ * @name LevelStreamListener.java
+ * @version 0.00.00
+ */
+public interface LevelStreamListener {
+	
+	/**
+	 * Called for every batch of objects that has been read. Each object is
+	 * paired with the index of the layer it belongs to.
+	 * 
+	 * @param batch
+	 * @param read the number of objects read so far.
+	 * @param total the number of objects in the file.
+	 * @return false to stop reading the file.
+	 */
+	boolean batchRead(ArrayList<Pair<GameObject, Integer>> batch, long read, long total);
+}
@@ -0,0 +1,217 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Inflater;
+
+import editor.entities.GameObject;
+
+/**
+ * A chunked level file that is kept open so its chunks can be read and
+ * written one at a time, for levels that are too big to be read whole. The
+ * file can be used from several threads.
+ *
+ * @author Jesper Bergstrom
+ * @name PagedLevelFile.java
+ * @version 0.00.00
+ */
+public class PagedLevelFile {
+
+	// The file is written whole again once more than this part of it is
+	// taken by old versions of chunks, but not before there is at least
+	// MIN_UNUSED_BYTES to win.
+	private static final double MAX_UNUSED_RATIO = 0.5;
+	private static final long MIN_UNUSED_BYTES = 1 << 20;
+
+	private File file;
+	private FileChannel channel;
+	private ChunkedLevelFile chunkedFile;
+	private LevelSettings levelSettings;
+	private HashMap<Long, LevelChunk> directory;
+	private Inflater inflater;
+	// Next free draw order of each layer, read when it is first needed.
+	private HashMap<Integer, Integer> nextOrders = new HashMap<Integer, Integer>();
+
+	PagedLevelFile(File file, FileChannel channel, ChunkedLevelFile chunkedFile) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.chunkedFile = chunkedFile;
+		levelSettings = chunkedFile.readSettings(channel);
+		directory = new HashMap<Long, LevelChunk>();
+		for (LevelChunk chunk : chunkedFile.readDirectory(channel)) {
+			directory.put(ChunkedLevelFile.key(chunk.layer, chunk.x, chunk.y), chunk);
+		}
+		inflater = new Inflater();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public LevelSettings getLevelSettings() {
+		return levelSettings;
+	}
+
+	/**
+	 * Returns the size of the chunks in pixels.
+	 *
+	 * @return
+	 */
+	public double getChunkSize() {
+		return ChunkedLevelFile.getChunkSize(levelSettings);
+	}
+
+	/**
+	 * Returns the number of objects in the file.
+	 *
+	 * @return
+	 */
+	public synchronized long getObjectCount() {
+		long count = 0;
+		for (LevelChunk chunk : directory.values()) {
+			count += chunk.count;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of objects in a chunk, or 0 if there is no such
+	 * chunk in the file.
+	 *
+	 * @param layer
+	 * @param cx
+	 * @param cy
+	 * @return
+	 */
+	public synchronized int getObjectCount(int layer, int cx, int cy) {
+		LevelChunk chunk = directory.get(ChunkedLevelFile.key(layer, cx, cy));
+		return chunk != null ? chunk.count : 0;
+	}
+
+	/**
+	 * Reads the objects of a chunk in the order they are drawn in. The array
+	 * is empty if there is no such chunk in the file.
+	 *
+	 * @param layer
+	 * @param cx
+	 * @param cy
+	 * @param orders the draw order of each object in its layer is put here.
+	 *            It must have room for the objects of the chunk.
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized GameObject[] readChunk(int layer, int cx, int cy, int[] orders) throws IOException {
+		LevelChunk chunk = directory.get(ChunkedLevelFile.key(layer, cx, cy));
+		if (chunk == null) {
+			return new GameObject[0];
+		}
+		int[] order = new int[chunk.count];
+		GameObject[] objects = chunkedFile.readChunk(channel, chunk, order, inflater);
+		return ChunkedLevelFile.inDrawOrder(new ArrayList<LevelChunk>(Arrays.asList(chunk)),
+				new GameObject[][] { objects }, new int[][] { order }, chunk.layer, orders);
+	}
+
+	/**
+	 * Returns a draw order that puts an object on top of every object of the
+	 * layer in the file. Each call returns a higher order than the last.
+	 *
+	 * @param layer
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized int nextOrder(int layer) throws IOException {
+		Integer next = nextOrders.get(layer);
+		if (next == null) {
+			// Only the orders of the chunks are read, which are at the start
+			// of each chunk.
+			int max = -1;
+			for (LevelChunk chunk : directory.values()) {
+				if (chunk.layer == layer && chunk.count > 0) {
+					int[] orders = chunkedFile.readOrders(channel, chunk, inflater);
+					for (int i = 0; i < orders.length; i++) {
+						max = Math.max(max, orders[i]);
+					}
+				}
+			}
+			next = max + 1;
+		}
+		nextOrders.put(layer, next + 1);
+		return next;
+	}
+
+	/**
+	 * Writes new versions of some chunks to the file. A chunk without objects
+	 * is removed from the file. The new versions are added to the end of the
+	 * file, and the file is written whole again once the old versions take
+	 * up too much of it.
+	 *
+	 * @param chunks
+	 * @param objects the objects of each chunk
+	 * @param orders the draw order of each object in its layer, as read by
+	 *            readChunk or given by nextOrder
+	 * @throws IOException
+	 */
+	public synchronized void writeChunks(ArrayList<LevelChunk> chunks, ArrayList<GameObject[]> objects, ArrayList<int[]> orders)
+			throws IOException {
+		reclaim(chunkedFile.writeChunks(channel, directory, chunks, objects, orders));
+	}
+
+	/**
+	 * Writes new versions of some chunks and marks the file as holding the
+	 * given journal.
+	 */
+	synchronized void writeChunks(ArrayList<LevelChunk> chunks, ArrayList<GameObject[]> objects,
+			ArrayList<int[]> orders, int journalId) throws IOException {
+		reclaim(chunkedFile.writeChunks(channel, directory, chunks, objects, orders, journalId));
+	}
+
+	/**
+	 * Writes the file whole again without the unused bytes if there are too
+	 * many of them. The file is written to a temporary file first, which
+	 * replaces the file in one step.
+	 */
+	private void reclaim(long unusedBytes) throws IOException {
+		if (unusedBytes < MIN_UNUSED_BYTES || unusedBytes <= channel.size() * MAX_UNUSED_RATIO) {
+			return;
+		}
+		File tmp = LevelJournal.getTempFile(file);
+		HashMap<Long, LevelChunk> rewritten;
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			rewritten = chunkedFile.rewrite(channel, directory, out);
+			out.force(true);
+		}
+		channel.close();
+		try {
+			LevelJournal.move(tmp, file);
+			directory = rewritten;
+		} finally {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+	}
+
+	/**
+	 * Returns one more than the highest layer that has a chunk in the file.
+	 */
+	synchronized int getLayerCount() {
+		int count = 0;
+		for (LevelChunk chunk : directory.values()) {
+			count = Math.max(count, chunk.layer + 1);
+		}
+		return count;
+	}
+
+	public synchronized void close() {
+		inflater.end();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
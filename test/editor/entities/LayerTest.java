@@ -0,0 +1,109 @@
+package editor.entities;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The columns of a layer and the views of its objects.
+ *
+ * @author Jesper Bergstrom
+ * @name LayerTest.java
+ * @version 0.00.00
+ */
+public class LayerTest {
+
+	@Test
+	public void viewsStayTheSameWhileRowsAreCompacted() {
+		Layer layer = new Layer();
+		ArrayList<GameObject> objects = new ArrayList<GameObject>();
+		for (int i = 0; i < 100; i++) {
+			GameObject o = createObject(i * 32, 0);
+			layer.add(o);
+			objects.add(o);
+		}
+		for (int i = 0; i < 60; i++) {
+			assertTrue(layer.remove(objects.get(i)));
+		}
+		// Removing more than half of the rows compacts them.
+		assertEquals(40, layer.size());
+		for (int i = 0; i < 40; i++) {
+			assertSame(objects.get(60 + i), layer.get(i));
+			assertEquals((60 + i) * 32, layer.get(i).getX());
+		}
+		assertSame(objects.get(99), layer.getObjectAt(99 * 32 + 16, 16));
+	}
+
+	@Test
+	public void removedObjectsKeepTheirFields() {
+		Layer layer = new Layer();
+		GameObject o = createObject(64, 96);
+		o.setScale(2);
+		Property[] properties = new Property[0];
+		o.setProperties(properties);
+		layer.add(o);
+		layer.setTag(o, 7);
+		layer.move(o, 128, 160);
+		assertEquals(7, layer.getTag(o));
+		assertSame(properties, o.getProperties());
+
+		layer.remove(o);
+		assertFalse(layer.contains(o));
+		assertEquals(128, o.getX());
+		assertEquals(160, o.getY());
+		assertEquals(2, o.getScale());
+		assertSame(properties, o.getProperties());
+		assertNull(layer.getObjectAt(140, 170));
+
+		// An undone delete puts the same object back.
+		layer.add(o);
+		assertSame(o, layer.getObjectAt(140, 170));
+	}
+
+	@Test
+	public void queriesFindTheSameObjectsAsASearch() {
+		Random random = new Random(4);
+		Layer layer = new Layer();
+		for (int i = 0; i < 5000; i++) {
+			GameObject o = createObject(random.nextInt(200) * 32 + random.nextFloat() * 32, random.nextInt(50) * 32);
+			// Some objects are much bigger than a cell of the index.
+			if (random.nextInt(100) == 0) {
+				o.setWidth(2000);
+			}
+			layer.add(o);
+		}
+		for (int i = 0; i < 2000; i++) {
+			layer.remove(layer.get(random.nextInt(layer.size())));
+		}
+		for (int i = 0; i < 100; i++) {
+			double x = random.nextInt(7000) - 200;
+			double y = random.nextInt(1800) - 100;
+			double width = random.nextInt(600);
+			double height = random.nextInt(300);
+			ArrayList<GameObject> expected = new ArrayList<GameObject>();
+			for (int j = 0; j < layer.size(); j++) {
+				GameObject o = layer.get(j);
+				if (!(o.getX() > x + width || o.getX() + o.getWidth() < x || o.getY() > y + height
+						|| o.getY() + o.getHeight() < y)) {
+					expected.add(o);
+				}
+			}
+			assertEquals(expected, layer.getObjectsInDrawOrder(x, y, width, height));
+		}
+	}
+
+	private static GameObject createObject(float x, float y) {
+		GameObject o = new GameObject();
+		o.setX(x);
+		o.setY(y);
+		o.setSpriteId((short) 0);
+		return o;
+	}
+}
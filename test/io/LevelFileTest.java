@@ -0,0 +1,254 @@
+package io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+import editor.entities.Pair;
+
+/**
+ * Round trips of levels through the flat and the chunked level format.
+ *
+ * @author Jesper Bergstrom
+ * @name LevelFileTest.java
+ * @version 0.00.00
+ */
+public class LevelFileTest {
+
+	@TempDir
+	Path dir;
+
+	private LevelFileManager levelFileManager = new LevelFileManager();
+
+	@Test
+	public void readsAndWritesFlatLevel() throws IOException {
+		File file = dir.resolve("flat.lvl").toFile();
+		Files.copy(Paths.get("test.lvl"), file.toPath());
+		Level level = levelFileManager.loadFile(file);
+		assertNotNull(level);
+		assertTrue(countObjects(level) > 0);
+
+		// A flat file stays flat and is written the same as it was read.
+		levelFileManager.writeFile(level, file.getPath());
+		assertEquals(LevelFormat.FLAT, levelFileManager.getFormat(file));
+		assertArrayEquals(Files.readAllBytes(Paths.get("test.lvl")), Files.readAllBytes(file.toPath()));
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+	}
+
+	@Test
+	public void flatAndChunkedLevelsAreReadTheSame() {
+		Level level = createLevel(new Random(1), 3, 2000);
+		File flat = dir.resolve("flat.lvl").toFile();
+		File chunked = dir.resolve("chunked.lvl").toFile();
+		// New levels are flat unless the chunked format is asked for.
+		levelFileManager.writeFile(level, flat.getPath());
+		levelFileManager.setDefaultFormat(LevelFormat.CHUNKED);
+		levelFileManager.writeFile(level, chunked.getPath());
+		assertEquals(LevelFormat.FLAT, levelFileManager.getFormat(flat));
+		assertEquals(LevelFormat.CHUNKED, levelFileManager.getFormat(chunked));
+		assertEquals(2000, levelFileManager.readObjectCount(flat));
+		assertEquals(2000, levelFileManager.readObjectCount(chunked));
+		assertEquals(describe(level), describe(levelFileManager.loadFile(flat)));
+		assertEquals(describe(level), describe(levelFileManager.loadFile(chunked)));
+	}
+
+	@Test
+	public void chunkedLevelKeepsDrawOrder() {
+		Level level = createLevel(new Random(2), 4, 20000);
+		File file = dir.resolve("chunked.lvl").toFile();
+		levelFileManager.setDefaultFormat(LevelFormat.CHUNKED);
+		levelFileManager.writeFile(level, file.getPath());
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+	}
+
+	@Test
+	public void streamedLevelKeepsDrawOrder() throws IOException {
+		Level level = createLevel(new Random(3), 4, 20000);
+		File file = dir.resolve("chunked.lvl").toFile();
+		levelFileManager.setDefaultFormat(LevelFormat.CHUNKED);
+		levelFileManager.writeFile(level, file.getPath());
+
+		ArrayList<Layer> levelMap = new ArrayList<Layer>();
+		for (int i = 0; i < level.levelMap.size(); i++) {
+			levelMap.add(new Layer());
+		}
+		levelFileManager.readObjects(file, 1000, (batch, read, total) -> {
+			for (Pair<GameObject, Integer> p : batch) {
+				levelMap.get(p.two).add(p.one);
+			}
+			return true;
+		});
+		assertEquals(describe(level), describe(new Level(level.levelSettings, levelMap)));
+	}
+
+	@Test
+	public void parallelAndSequentialFilesAreTheSame() throws IOException {
+		Level level = createLevel(new Random(5), 8, 50000);
+		File parallel = dir.resolve("parallel.lvl").toFile();
+		File sequential = dir.resolve("sequential.lvl").toFile();
+		levelFileManager.setDefaultFormat(LevelFormat.CHUNKED);
+		levelFileManager.setParallel(true);
+		levelFileManager.writeFile(level, parallel.getPath());
+		levelFileManager.setParallel(false);
+		levelFileManager.writeFile(level, sequential.getPath());
+		// Enough chunks that the work is split into several tasks.
+		assertTrue(levelFileManager.readDirectory(parallel).size() > 16 * 8);
+		assertArrayEquals(Files.readAllBytes(sequential.toPath()), Files.readAllBytes(parallel.toPath()));
+
+		List<String> read = describe(levelFileManager.loadFile(parallel));
+		levelFileManager.setParallel(true);
+		assertEquals(read, describe(levelFileManager.loadFile(parallel)));
+		assertEquals(describe(level), read);
+
+		// The flat format splits the records into blocks of 16k.
+		File parallelFlat = dir.resolve("parallel-flat.lvl").toFile();
+		File sequentialFlat = dir.resolve("sequential-flat.lvl").toFile();
+		levelFileManager.setDefaultFormat(LevelFormat.FLAT);
+		levelFileManager.writeFile(level, parallelFlat.getPath());
+		levelFileManager.setParallel(false);
+		levelFileManager.writeFile(level, sequentialFlat.getPath());
+		assertArrayEquals(Files.readAllBytes(sequentialFlat.toPath()), Files.readAllBytes(parallelFlat.toPath()));
+
+		read = describe(levelFileManager.loadFile(parallelFlat));
+		levelFileManager.setParallel(true);
+		assertEquals(read, describe(levelFileManager.loadFile(parallelFlat)));
+		assertEquals(describe(level), read);
+	}
+
+	@Test
+	public void changedChunksKeepDrawOrder() throws IOException {
+		// The objects of the layer take turns between two chunks, so the
+		// chunks are stacked into each other.
+		ArrayList<Layer> levelMap = new ArrayList<Layer>();
+		levelMap.add(new Layer());
+		LevelSettings levelSettings = new LevelSettings(1000, 10, 32);
+		double chunkSize = ChunkedLevelFile.getChunkSize(levelSettings);
+		for (int i = 0; i < 20; i++) {
+			GameObject o = createObject(i % 2 == 0 ? i : (float) (3 * chunkSize + i), 0, (short) (i % 5));
+			levelMap.get(0).add(o);
+		}
+		File file = dir.resolve("paged.lvl").toFile();
+		levelFileManager.setDefaultFormat(LevelFormat.CHUNKED);
+		levelFileManager.writeFile(new Level(levelSettings, levelMap), file.getPath());
+
+		PagedLevelFile paged = levelFileManager.openPaged(file);
+		assertNotNull(paged);
+		int[] orders = new int[paged.getObjectCount(0, 0, 0)];
+		GameObject[] objects = paged.readChunk(0, 0, 0, orders);
+		assertEquals(10, objects.length);
+		// Move the bottom object of the chunk and put a new object on top.
+		objects[0].setX(objects[0].getX() + 5);
+		GameObject added = createObject(7, 7, (short) 1);
+		GameObject[] changed = Arrays.copyOf(objects, objects.length + 1);
+		int[] changedOrders = Arrays.copyOf(orders, orders.length + 1);
+		changed[objects.length] = added;
+		changedOrders[objects.length] = paged.nextOrder(0);
+		paged.writeChunks(new ArrayList<LevelChunk>(Arrays.asList(new LevelChunk(0, 0, 0))),
+				new ArrayList<GameObject[]>(Arrays.asList(new GameObject[][] { changed })),
+				new ArrayList<int[]>(Arrays.asList(new int[][] { changedOrders })));
+		paged.close();
+
+		GameObject first = levelMap.get(0).get(0);
+		levelMap.get(0).move(first, first.getX() + 5, first.getY());
+		levelMap.get(0).add(createObject(7, 7, (short) 1));
+		assertEquals(describe(new Level(levelSettings, levelMap)), describe(levelFileManager.loadFile(file)));
+	}
+
+	@Test
+	public void pagedSavesReclaimUnusedBytes() throws IOException {
+		Level level = createLevel(new Random(6), 8, 50000);
+		File file = dir.resolve("paged.lvl").toFile();
+		levelFileManager.setDefaultFormat(LevelFormat.CHUNKED);
+		levelFileManager.writeFile(level, file.getPath());
+		long written = file.length();
+
+		// Every save adds a chunk and the whole directory to the file.
+		PagedLevelFile paged = levelFileManager.openPaged(file);
+		assertNotNull(paged);
+		LevelChunk first = levelFileManager.readDirectory(file).get(0);
+		long maxLength = 0;
+		for (int i = 0; i < 200; i++) {
+			int[] orders = new int[paged.getObjectCount(first.layer, first.x, first.y)];
+			GameObject[] objects = paged.readChunk(first.layer, first.x, first.y, orders);
+			paged.writeChunks(new ArrayList<LevelChunk>(Arrays.asList(new LevelChunk(first.layer, first.x, first.y))),
+					new ArrayList<GameObject[]>(Arrays.asList(new GameObject[][] { objects })),
+					new ArrayList<int[]>(Arrays.asList(new int[][] { orders })));
+			maxLength = Math.max(maxLength, file.length());
+		}
+		paged.close();
+		assertTrue(200L * levelFileManager.readDirectory(file).size() * ChunkedLevelFile.DIRECTORY_ENTRY_SIZE > 2 << 20);
+		assertTrue(maxLength < Math.max(2 * written, written + (1 << 20)) + (64 << 10));
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+	}
+
+	/**
+	 * Creates a level of objects that are placed at random, some of them on
+	 * the grid and some of them between tiles, so many of them overlap.
+	 */
+	static Level createLevel(Random random, int layers, int objects) {
+		ArrayList<Layer> levelMap = new ArrayList<Layer>();
+		for (int i = 0; i < layers; i++) {
+			levelMap.add(new Layer());
+		}
+		for (int i = 0; i < objects; i++) {
+			float x = random.nextInt(500) * 32 + (random.nextInt(4) == 0 ? random.nextFloat() * 32 : 0);
+			float y = random.nextInt(100) * 32;
+			levelMap.get(random.nextInt(layers)).add(createObject(x, y, (short) random.nextInt(5)));
+		}
+		return new Level(new LevelSettings(500, 100, 32), levelMap);
+	}
+
+	static GameObject createObject(float x, float y, short spriteId) {
+		GameObject o = new GameObject();
+		o.setX(x);
+		o.setY(y);
+		o.setSpriteId(spriteId);
+		return o;
+	}
+
+	/**
+	 * Describes the objects of each layer that is not empty, in draw order.
+	 */
+	static List<String> describe(Level level) {
+		ArrayList<String> layers = new ArrayList<String>();
+		for (int i = 0; i < level.levelMap.size(); i++) {
+			Layer layer = level.levelMap.get(i);
+			if (layer.size() == 0) {
+				continue;
+			}
+			StringBuilder sb = new StringBuilder(i + ":");
+			for (int j = 0; j < layer.size(); j++) {
+				GameObject o = layer.get(j);
+				sb.append(' ').append(o.getX()).append(',').append(o.getY()).append(',').append(o.getWidth())
+						.append(',').append(o.getHeight()).append(',').append(o.getScale()).append(',')
+						.append(o.getSpriteId());
+			}
+			layers.add(sb.toString());
+		}
+		return layers;
+	}
+
+	static int countObjects(Level level) {
+		int count = 0;
+		for (int i = 0; i < level.levelMap.size(); i++) {
+			count += level.levelMap.get(i).size();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,260 @@
+package io;
+
+import static io.LevelFileTest.createObject;
+import static io.LevelFileTest.describe;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import editor.entities.GameObject;
+import editor.entities.Layer;
+
+/**
+ * Saving edits to the journal of a level, replaying them and recovering from
+ * saves and compactions that were cut short.
+ *
+ * @author Jesper Bergstrom
+ * @name LevelJournalTest.java
+ * @version 0.00.00
+ */
+public class LevelJournalTest {
+
+	@TempDir
+	Path dir;
+
+	private LevelFileManager levelFileManager = new LevelFileManager();
+	private File file;
+	private File journalFile;
+	private Level level;
+	private Random random = new Random(4);
+	// Every object gets a place of its own, so a record can only match one
+	// object.
+	private int nextPlace = 0;
+
+	@BeforeEach
+	public void createLevel() {
+		file = dir.resolve("level.lvl").toFile();
+		journalFile = LevelJournal.getJournalFile(file);
+		ArrayList<Layer> levelMap = new ArrayList<Layer>();
+		for (int i = 0; i < 2; i++) {
+			levelMap.add(new Layer());
+		}
+		level = new Level(new LevelSettings(200, 200, 32), levelMap);
+		for (int i = 0; i < 1000; i++) {
+			levelMap.get(i % 2).add(createObject(nextX(), nextY(), (short) (i % 5)));
+		}
+		levelFileManager.setDefaultFormat(LevelFormat.CHUNKED);
+		levelFileManager.writeFile(level, file.getPath());
+	}
+
+	@Test
+	public void journalIsCreatedByFirstSave() throws IOException {
+		LevelJournal journal = levelFileManager.openJournal(file);
+		journal.save();
+		assertFalse(journalFile.exists());
+		journal.close();
+		PagedLevelFile paged = levelFileManager.openPaged(file);
+		assertNotNull(paged);
+		paged.close();
+
+		journal = levelFileManager.openJournal(file);
+		edit(journal, 50);
+		journal.save();
+		journal.close();
+		assertTrue(journalFile.exists());
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+	}
+
+	@Test
+	public void pagingFoldsJournal() throws IOException {
+		LevelJournal journal = levelFileManager.openJournal(file);
+		edit(journal, 200);
+		journal.save();
+		journal.close();
+
+		PagedLevelFile paged = levelFileManager.openPaged(file);
+		assertNotNull(paged);
+		paged.close();
+		assertFalse(journalFile.exists());
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+	}
+
+	@Test
+	public void compactionFoldsJournal() throws IOException {
+		LevelJournal journal = levelFileManager.openJournal(file);
+		edit(journal, 200);
+		journal.save();
+		journal.compact();
+		assertFalse(journalFile.exists());
+		edit(journal, 20);
+		journal.save();
+		journal.close();
+		assertTrue(journalFile.exists());
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+	}
+
+	@Test
+	public void tornBlockIsIgnored() throws IOException {
+		LevelJournal journal = levelFileManager.openJournal(file);
+		edit(journal, 30);
+		journal.save();
+		List<String> saved = describe(level);
+		long firstBlockEnd = journalFile.length();
+		edit(journal, 30);
+		journal.save();
+		journal.close();
+
+		// The second block was only partly written.
+		byte[] bytes = Files.readAllBytes(journalFile.toPath());
+		Files.write(journalFile.toPath(), Arrays.copyOf(bytes, bytes.length - 5));
+		assertEquals(saved, describe(levelFileManager.loadFile(file)));
+
+		// The second block was written whole but with a wrong byte in it.
+		bytes[(int) firstBlockEnd + 10] ^= 1;
+		Files.write(journalFile.toPath(), bytes);
+		level = levelFileManager.loadFile(file);
+		assertEquals(saved, describe(level));
+
+		// The broken block is cut off, so new edits follow the first block.
+		journal = levelFileManager.openJournal(file);
+		assertEquals(firstBlockEnd, journal.size());
+		edit(journal, 30);
+		journal.save();
+		journal.close();
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+	}
+
+	@Test
+	public void recoversFromCrashBeforeLevelIsReplaced() throws IOException {
+		LevelJournal journal = levelFileManager.openJournal(file);
+		edit(journal, 50);
+		journal.save();
+		journal.close();
+
+		// Compaction stopped after writing the temporary files.
+		File tmpJournal = LevelJournal.getTempFile(journalFile);
+		Files.write(tmpJournal.toPath(), new byte[LevelJournal.HEADER_SIZE]);
+		Files.write(LevelJournal.getTempFile(file).toPath(), new byte[100]);
+
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+		assertFalse(tmpJournal.exists());
+		assertTrue(journalFile.exists());
+	}
+
+	@Test
+	public void recoversFromCrashBetweenReplacingLevelAndJournal() throws IOException {
+		LevelJournal journal = levelFileManager.openJournal(file);
+		edit(journal, 50);
+		journal.save();
+		byte[] folded = Files.readAllBytes(journalFile.toPath());
+		edit(journal, 50);
+		journal.save();
+		journal.close();
+		byte[] both = Files.readAllBytes(journalFile.toPath());
+
+		// Fold the first block only.
+		Files.write(journalFile.toPath(), folded);
+		journal = levelFileManager.openJournal(file);
+		journal.compact();
+		journal.close();
+		int foldedId = LevelJournal.readFoldedId(file);
+		assertEquals(ByteBuffer.wrap(folded).getInt(4), foldedId);
+
+		// The level file has been replaced, but the old journal is still
+		// there and the second block is only in the temporary journal.
+		Files.write(journalFile.toPath(), both);
+		byte[] tail = Arrays.copyOfRange(both, folded.length - LevelJournal.HEADER_SIZE, both.length);
+		System.arraycopy(both, 0, tail, 0, LevelJournal.HEADER_SIZE);
+		ByteBuffer.wrap(tail).putInt(4, foldedId + 1);
+		File tmpJournal = LevelJournal.getTempFile(journalFile);
+		Files.write(tmpJournal.toPath(), tail);
+
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+		assertFalse(tmpJournal.exists());
+		assertEquals(foldedId + 1, LevelJournal.readId(journalFile));
+	}
+
+	@Test
+	public void foldedJournalIsNotReplayedAgain() throws IOException {
+		LevelJournal journal = levelFileManager.openJournal(file);
+		edit(journal, 50);
+		journal.save();
+		byte[] bytes = Files.readAllBytes(journalFile.toPath());
+		journal.compact();
+		journal.close();
+
+		// The level file has been replaced, but the journal was not removed.
+		Files.write(journalFile.toPath(), bytes);
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+		assertFalse(journalFile.exists());
+	}
+
+	@Test
+	public void journalThatDoesNotMatchIsKept() throws IOException {
+		LevelJournal journal = levelFileManager.openJournal(file);
+		edit(journal, 20);
+		journal.remove(0, createObject(-100, -100, (short) 1));
+		journal.save();
+
+		assertThrows(IOException.class, () -> journal.compact());
+		journal.close();
+		assertTrue(journalFile.exists());
+		assertNull(levelFileManager.openPaged(file));
+		assertTrue(journalFile.exists());
+		assertEquals(describe(level), describe(levelFileManager.loadFile(file)));
+		assertEquals(1, levelFileManager.readObjects(file, 100, (batch, read, total) -> true));
+	}
+
+	/**
+	 * Makes random edits to the level and records them in the journal, the
+	 * way the editor does.
+	 */
+	private void edit(LevelJournal journal, int count) {
+		for (int i = 0; i < count; i++) {
+			int index = random.nextInt(level.levelMap.size());
+			Layer layer = level.levelMap.get(index);
+			int kind = random.nextInt(3);
+			if (kind == 0 || layer.size() == 0) {
+				GameObject o = createObject(nextX(), nextY(), (short) random.nextInt(5));
+				layer.add(o);
+				journal.add(index, o);
+			} else if (kind == 1) {
+				GameObject o = layer.get(random.nextInt(layer.size()));
+				journal.remove(index, o);
+				layer.remove(o);
+			} else {
+				GameObject o = layer.get(random.nextInt(layer.size()));
+				float oldX = o.getX();
+				float oldY = o.getY();
+				layer.move(o, nextX(), nextY());
+				journal.move(index, o, oldX, oldY);
+			}
+		}
+	}
+
+	// The x and the y of the next place, which moves on after the y.
+	private float nextX() {
+		return nextPlace % 200 * 32;
+	}
+
+	private float nextY() {
+		return nextPlace++ / 200 * 32;
+	}
+}